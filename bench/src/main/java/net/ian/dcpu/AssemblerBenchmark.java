@@ -0,0 +1,99 @@
+package net.ian.dcpu;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Assembling a small hand-written program and a large generated one (the same one every
+// time, from SEED), and Assembler.compile() on its own.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class AssemblerBenchmark {
+	private static final long SEED = 0xdc16;
+	private static final int LARGE_LINES = 4000;
+
+	static final String SMALL =
+			"; Fills the screen with a message\n"
+			+ ":start SET I, 0\n"
+			+ "       SET J, 0x8000\n"
+			+ ":loop  SET A, [message+I]\n"
+			+ "       IFE A, 0\n"
+			+ "           SET PC, done\n"
+			+ "       BOR A, 0xf000\n"
+			+ "       STI [J], A\n"
+			+ "       SET PC, loop\n"
+			+ ":done  SET PC, done\n"
+			+ ":message DAT \"Hello, world!\", 0\n";
+
+	private String large;
+	private final int[] ops = new int[256], as = new int[256], bs = new int[256];
+	private int next;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(SEED);
+		String[] basic = { "SET", "ADD", "SUB", "MUL", "DIV", "AND", "BOR", "XOR", "SHL", "SHR", "IFE", "IFN", "IFG" };
+		String[] operands = { "A", "B", "C", "X", "Y", "Z", "I", "J", "[A]", "[0x1000+I]", "PUSH", "POP", "PEEK", "0x1234", "7" };
+		StringBuilder source = new StringBuilder();
+		for (int line = 0; line < LARGE_LINES; line++) {
+			if (line % 16 == 0)
+				source.append(":label").append(line / 16).append(' ');
+			switch (random.nextInt(10)) {
+			case 0: // Jumps go forwards as well as back, so some labels are fixed up later.
+				source.append("SET PC, label").append(random.nextInt(LARGE_LINES / 16));
+				break;
+			case 1:
+				source.append("JSR label").append(random.nextInt(LARGE_LINES / 16));
+				break;
+			case 2:
+				source.append("DAT 0x").append(Integer.toHexString(random.nextInt(0x10000))).append(", \"abc\"");
+				break;
+			default:
+				source.append(basic[random.nextInt(basic.length)]).append(' ')
+						.append(operands[random.nextInt(8)]).append(", ")
+						.append(operands[random.nextInt(operands.length)]);
+			}
+			source.append(" ; comment\n");
+		}
+		large = source.toString();
+
+		for (int i = 0; i < ops.length; i++) {
+			ops[i] = random.nextInt(0x1f) + 1;
+			as[i] = random.nextInt(0x40);
+			bs[i] = random.nextInt(0x20);
+		}
+	}
+
+	@Benchmark
+	public List<Character> assembleSmall() {
+		return new Assembler().assemble(SMALL);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public List<Character> assembleLarge() {
+		return new Assembler().assemble(large);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public char compile() {
+		next = (next + 1) & 0xff;
+		return Assembler.compile(ops[next], as[next], bs[next]);
+	}
+}
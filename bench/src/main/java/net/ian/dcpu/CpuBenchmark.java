@@ -0,0 +1,81 @@
+package net.ian.dcpu;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// DCPU.cycle(), one instruction a call, for each kind of instruction. The program resets
+// SP, I and J, runs the instruction over and over, then jumps back to the start, so four
+// calls in every REPEAT + 4 run something else.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class CpuBenchmark {
+	private static final int REPEAT = 255;
+	private static final long SEED = 0xdc16;
+
+	@Param({ "SET", "ADD", "MUL", "DIV", "IF", "MEMORY", "STACK", "STI", "JSR" })
+	public String instruction;
+
+	@Param({ "interpreter", "fast" })
+	public String engine;
+
+	private DCPU cpu;
+
+	@Setup
+	public void setup() {
+		cpu = new DCPU(new Assembler().assemble(program(instruction)));
+		cpu.setEngine(engine.equals("fast") ? new FastInterpreter(cpu) : new Interpreter(cpu));
+		Random random = new Random(SEED);
+		for (int i = 0; i < cpu.register.length; i++)
+			cpu.register[i] = (char)(random.nextInt(0xffff) + 1);
+	}
+
+	static String program(String instruction) {
+		String body;
+		switch (instruction) {
+		case "SET": body = "SET A, B"; break;
+		case "ADD": body = "ADD A, 0x1234"; break;
+		case "MUL": body = "MUL A, B"; break;
+		case "DIV": body = "DIV A, 7"; break;
+		case "IF": body = "IFE A, A"; break;
+		case "MEMORY": body = "SET [0x1000+I], [0x2000+J]"; break;
+		case "STACK": body = "SET PUSH, A"; break;
+		case "STI": body = "STI [I], [J]"; break;
+		case "JSR": body = "JSR sub"; break;
+		default: throw new IllegalArgumentException(instruction);
+		}
+		// The stack and I and J start over every time round, so PUSH and STI stay in their own
+		// data windows instead of walking over the program.
+		StringBuilder program = new StringBuilder();
+		program.append(":start SET SP, 0\n");
+		program.append("SET I, 0x1000\n");
+		program.append("SET J, 0x2000\n");
+		for (int i = 0; i < REPEAT; i++)
+			program.append(body).append('\n');
+		program.append("SET PC, start\n");
+		// JSRs return straight away, so they cost two instructions a call.
+		program.append(":sub SET PC, POP\n");
+		return program.toString();
+	}
+
+	@Benchmark
+	public DCPU cycle() {
+		cpu.cycle();
+		return cpu;
+	}
+}
@@ -0,0 +1,164 @@
+package net.ian.dcpu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Whole programs, where the JMH benchmarks time single operations: runs each program in
+// the corpus (bench/src/main/resources/corpus) headless and unthrottled until it exits,
+// checks the checksum it leaves at its "result" label, and prints a CSV line per run with
+// instructions and guest cycles per second and the bytes allocated per second.
+//
+//   java -cp bench/target/benchmarks.jar net.ian.dcpu.MacroBenchmark
+//       [-engines interpreter,fast,jit] [-warmup <runs>] [-runs <runs>] [program...]
+//
+// Exits with status 1 if any run gave the wrong checksum or didn't finish.
+public class MacroBenchmark {
+	// More than any program in the corpus needs, by far; a run that gets this far is stuck.
+	private static final long MAX_CYCLES = 1L << 34;
+
+	// A program in the corpus, the devices it expects (in this order) and what it should
+	// leave at its result label.
+	static class Workload {
+		final String name;
+		final boolean clock, monitor;
+		final char checksum;
+
+		Workload(String name, boolean clock, boolean monitor, int checksum) {
+			this.name = name;
+			this.clock = clock;
+			this.monitor = monitor;
+			this.checksum = (char)checksum;
+		}
+	}
+
+	static final Workload[] CORPUS = {
+		new Workload("sieve", false, false, 0x2afd),
+		new Workload("sort", false, false, 0x727e),
+		new Workload("memcopy", false, false, 0x37c8),
+		new Workload("bulkcopy", false, false, 0xb480),
+		new Workload("clock", true, false, 0x7ae0),
+		new Workload("screen", false, true, 0x88a2),
+		new Workload("selfmod", false, false, 0x3628),
+	};
+
+	// What one run did.
+	static class Result {
+		long instructions, cycles, nanos, allocated;
+		char checksum;
+		boolean exited;
+	}
+
+	public static void main(String[] args) throws IOException {
+		List<String> engines = Arrays.asList("interpreter", "fast", "jit");
+		List<String> names = new ArrayList<>();
+		int warmup = 2, runs = 5;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-engines":
+				engines = Arrays.asList(args[++i].split(","));
+				break;
+			case "-warmup":
+				warmup = Integer.parseInt(args[++i]);
+				break;
+			case "-runs":
+				runs = Integer.parseInt(args[++i]);
+				break;
+			default:
+				names.add(args[i]);
+			}
+		}
+
+		boolean failed = false;
+		System.out.println("program,engine,run,instructions,cycles,seconds,ips,cycles_per_sec,alloc_bytes,alloc_bytes_per_sec,checksum,ok");
+		for (Workload workload : CORPUS) {
+			if (!names.isEmpty() && !names.contains(workload.name))
+				continue;
+			Assembler assembler = new Assembler();
+			List<Character> code = assembler.assemble(load(workload.name));
+			Integer result = assembler.labels.get("RESULT");
+			if (result == null)
+				throw new IllegalStateException(workload.name + " has no result label");
+			for (String engine : engines) {
+				for (int run = -warmup; run < runs; run++) {
+					Result r = run(workload, code, result, engine);
+					boolean ok = r.exited && r.checksum == workload.checksum;
+					failed |= !ok;
+					if (run < 0)
+						continue;
+					double seconds = r.nanos / 1e9;
+					System.out.printf("%s,%s,%d,%d,%d,%.6f,%.0f,%.0f,%d,%.0f,0x%04x,%b%n",
+							workload.name, engine, run, r.instructions, r.cycles, seconds,
+							r.instructions / seconds, r.cycles / seconds,
+							r.allocated, r.allocated < 0 ? -1 : r.allocated / seconds, (int)r.checksum, ok);
+				}
+			}
+		}
+		System.exit(failed ? 1 : 0);
+	}
+
+	// Runs the program on a fresh machine until it exits.
+	static Result run(Workload workload, List<Character> code, int result, String engine) {
+		final DCPU cpu = new DCPU(code);
+		if (workload.clock)
+			new Clock(cpu);
+		if (workload.monitor) {
+			// Draws the screen at 60 frames a second of guest time, as the window would.
+			final Monitor monitor = new Monitor(cpu);
+			cpu.scheduler.schedule(cpu.hz / 60, new Runnable() {
+				@Override
+				public void run() {
+					monitor.update();
+					cpu.scheduler.schedule(cpu.hz / 60, this);
+				}
+			});
+		}
+		switch (engine) {
+		case "interpreter": break;
+		case "fast": cpu.setEngine(new FastInterpreter(cpu)); break;
+		case "jit": cpu.setEngine(new JitEngine(cpu)); break;
+		default: throw new IllegalArgumentException("Unknown engine: " + engine);
+		}
+
+		Result r = new Result();
+		long allocatedBefore = allocated();
+		long start = System.nanoTime();
+		r.cycles = cpu.runCycles(MAX_CYCLES);
+		r.nanos = System.nanoTime() - start;
+		long allocatedAfter = allocated();
+		r.allocated = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore;
+		r.instructions = cpu.instructionCount;
+		r.exited = cpu.hasExited() && r.cycles < MAX_CYCLES;
+		r.checksum = cpu.read(result);
+		return r;
+	}
+
+	// Bytes allocated by this thread so far, or -1 if the JVM can't say.
+	private static long allocated() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	static String load(String name) throws IOException {
+		InputStream in = MacroBenchmark.class.getResourceAsStream("/corpus/" + name + ".dasm");
+		if (in == null)
+			throw new IOException("No program called " + name + " in the corpus");
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				out.write(buffer, 0, n);
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		} finally {
+			in.close();
+		}
+	}
+}
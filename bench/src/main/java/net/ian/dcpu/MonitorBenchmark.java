@@ -0,0 +1,80 @@
+package net.ian.dcpu;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The monitor's side of a frame: taking a write to video memory, drawing the whole screen
+// or just a changed row, and the panel scaling it up. Runs headless; the panel is never
+// shown, so only the scaling is measured, not the copy to the window.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class MonitorBenchmark {
+	private static final long SEED = 0xdc16;
+	private static final int SCREEN = 0x8000;
+
+	private Monitor monitor;
+	private MonitorPanel panel;
+	// Writes to replay, cycled through in order.
+	private final char[] words = new char[Monitor.COLUMNS * Monitor.ROWS];
+	private int next;
+
+	@Setup
+	public void setup() {
+		DCPU cpu = new DCPU(new char[0]);
+		monitor = new Monitor(cpu);
+		panel = new MonitorPanel(monitor);
+		Random random = new Random(SEED);
+		for (int i = 0; i < words.length; i++) {
+			words[i] = (char)random.nextInt(0x10000);
+			monitor.onSet((char)(SCREEN + i), words[i]);
+		}
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public Monitor onSet() {
+		next = (next + 1) % words.length;
+		monitor.onSet((char)(SCREEN + next), words[next]);
+		return monitor;
+	}
+
+	// Redrawing everything, as after mapping a new screen.
+	@Benchmark
+	public Monitor render() {
+		monitor.invalidate();
+		monitor.render();
+		return monitor;
+	}
+
+	// A line of text written, then drawn: only its cells are redrawn.
+	@Benchmark
+	public Monitor renderRow() {
+		int row = next / Monitor.COLUMNS % Monitor.ROWS * Monitor.COLUMNS;
+		for (int i = row; i < row + Monitor.COLUMNS; i++)
+			monitor.onSet((char)(SCREEN + i), words[i]);
+		next = (next + Monitor.COLUMNS) % words.length;
+		monitor.render();
+		return monitor;
+	}
+
+	@Benchmark
+	public MonitorPanel scale() {
+		panel.scale();
+		return panel;
+	}
+}
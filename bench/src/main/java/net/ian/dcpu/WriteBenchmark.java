@@ -0,0 +1,73 @@
+package net.ian.dcpu;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// DCPU.write() to a page watched by no, one or several listeners. Every write changes
+// the word, so the listeners always hear about it.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class WriteBenchmark {
+	private static final int PAGE = 0x1000;
+
+	@Param({ "0", "1", "8" })
+	public int listeners;
+
+	private DCPU cpu;
+	private int addr, value;
+
+	// Does next to nothing, so what's measured is the delivery.
+	private static class Listener implements MemoryListener {
+		private final Blackhole blackhole;
+
+		Listener(Blackhole blackhole) {
+			this.blackhole = blackhole;
+		}
+
+		@Override
+		public boolean inMemoryRange(char loc) {
+			return true;
+		}
+
+		@Override
+		public void onSet(char location, char value) {
+			blackhole.consume(value);
+		}
+
+		@Override
+		public void onRangeDirty(BitSet dirty) {}
+
+		@Override
+		public void onGet(char location, char value) {}
+	}
+
+	@Setup
+	public void setup(Blackhole blackhole) {
+		cpu = new DCPU(new char[0]);
+		for (int i = 0; i < listeners; i++)
+			cpu.watch(new Listener(blackhole), PAGE, Memory.PAGE_SIZE);
+	}
+
+	@Benchmark
+	public void write() {
+		addr = (addr + 1) & 0xff;
+		cpu.write(PAGE + addr, ++value);
+	}
+}
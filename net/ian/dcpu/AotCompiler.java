@@ -0,0 +1,205 @@
+package net.ian.dcpu;
+
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+// Compiles a whole program ahead of time into a jar that AotRunner runs: the memory
+// image, a CompiledBlock class for every block of code reachable from address 0 (and
+// from any entry labels given, if the program was assembled here), and an index of the
+// blocks. Only jumps to constant addresses are followed. Code reached some other way
+// (SET PC, A, returns into code that wasn't found, ...) is left to the JitEngine at run
+// time, and so is code that gets overwritten. Labels aren't taken as entry points on
+// their own, since plenty of them are on data.
+//
+// The jar holds only the program, so it runs with the emulator on the classpath too:
+//   java -cp <emulator classes>:program.jar net.ian.dcpu.AotRunner
+public class AotCompiler {
+	static final String PACKAGE = "net/ian/dcpu/aot/";
+	static final String IMAGE = PACKAGE + "image";
+	static final String INDEX = PACKAGE + "blocks";
+
+	private final char[] memory;
+	// Addresses that start a block: entry points, jump targets, and wherever execution
+	// comes back to after a block ends or the interpreter steps over something.
+	private final TreeSet<Integer> leaders = new TreeSet<>();
+	private final boolean[] reachable = new boolean[DCPU.MEMORY_SIZE];
+
+	public AotCompiler(char[] memory) {
+		this.memory = memory;
+	}
+
+	// Follows the code from the given entry points, and returns the addresses of the blocks found.
+	public TreeSet<Integer> discover(Collection<Integer> entries) {
+		Deque<Integer> work = new ArrayDeque<>();
+		for (int entry : entries)
+			lead(work, entry);
+		while (!work.isEmpty()) {
+			int pc = work.pop();
+			if (reachable[pc])
+				continue;
+			reachable[pc] = true;
+
+			int insn = Instruction.decode(memory[pc]);
+			int next = (pc + Instruction.length(insn)) & 0xffff;
+			int opcode = Instruction.opcode(insn);
+			int target = constant(pc, Instruction.a(insn));
+			if (Instruction.isSpecial(insn)) {
+				if (opcode == 0x00 || opcode == 0x0b) // EXIT, RFI
+					continue;
+				if (opcode == 0x01 && target >= 0) // JSR
+					lead(work, target);
+				if (opcode == 0x0a && target > 0) // IAS, the interrupt handler
+					lead(work, target);
+				// The interpreter handles everything but JSR, so execution picks up after it.
+				lead(work, next);
+			} else if (Instruction.isConditional(insn)) {
+				lead(work, next);
+				lead(work, skip(next));
+			} else if (Instruction.b(insn) == 0x1c) { // Writes PC
+				if (target < 0)
+					continue;
+				if (opcode == 0x01) // SET
+					lead(work, target);
+				else if (opcode == 0x02) // ADD
+					lead(work, (next + target) & 0xffff);
+				else if (opcode == 0x03) // SUB
+					lead(work, (next - target) & 0xffff);
+			} else {
+				work.push(next);
+			}
+		}
+
+		// Long blocks are split at BlockCompiler.MAX_INSTRUCTIONS, and the rest of the code
+		// needs a block of its own.
+		BlockCompiler compiler = new BlockCompiler();
+		TreeSet<Integer> blocks = new TreeSet<>();
+		Deque<Integer> starts = new ArrayDeque<>(leaders);
+		while (!starts.isEmpty()) {
+			int start = starts.pop();
+			if (!reachable[start] || !blocks.add(start))
+				continue;
+			BlockCompiler.Plan plan = compiler.plan(memory, start);
+			if (plan == null) {
+				blocks.remove(start);
+				continue;
+			}
+			int end = start + plan.words;
+			if (end < DCPU.MEMORY_SIZE && reachable[end] && !leaders.contains(end))
+				starts.push(end);
+		}
+		return blocks;
+	}
+
+	// Where execution goes after a failed IF: past the next instruction, and any IFs chained to it.
+	private int skip(int pc) {
+		int insn;
+		do {
+			insn = Instruction.decode(memory[pc]);
+			pc = (pc + Instruction.length(insn)) & 0xffff;
+		} while (Instruction.isConditional(insn));
+		return pc;
+	}
+
+	// The value of operand a if it's a literal, or -1.
+	private int constant(int pc, int mode) {
+		if (mode == 0x1f)
+			return memory[(pc + 1) & 0xffff];
+		if (mode >= 0x20)
+			return (mode - 0x21) & 0xffff;
+		return -1;
+	}
+
+	private void lead(Deque<Integer> work, int pc) {
+		leaders.add(pc);
+		work.push(pc);
+	}
+
+	// Writes the image, the blocks and the index to a jar runnable with AotRunner.
+	public void write(String jarPath, Collection<Integer> blocks) throws IOException {
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+
+		BlockCompiler compiler = new BlockCompiler();
+		try (JarOutputStream jar = new JarOutputStream(new FileOutputStream(jarPath), manifest)) {
+			jar.putNextEntry(new JarEntry(IMAGE));
+			DataOutputStream image = new DataOutputStream(jar);
+			for (char word : memory)
+				image.writeChar(word);
+			image.flush();
+			jar.closeEntry();
+
+			StringBuilder index = new StringBuilder();
+			for (int start : blocks) {
+				BlockCompiler.Plan plan = compiler.plan(memory, start);
+				String name = PACKAGE + blockName(start);
+				jar.putNextEntry(new JarEntry(name + ".class"));
+				jar.write(compiler.generate(name, memory, plan));
+				jar.closeEntry();
+				index.append(Integer.toHexString(start)).append(' ').append(plan.words).append(' ')
+						.append(plan.leadCycles).append('\n');
+			}
+			jar.putNextEntry(new JarEntry(INDEX));
+			Writer out = new OutputStreamWriter(jar, StandardCharsets.UTF_8);
+			out.write(index.toString());
+			out.flush();
+			jar.closeEntry();
+		}
+	}
+
+	static String blockName(int start) {
+		return String.format("Block_%04x", start);
+	}
+
+	// Usage: AotCompiler <program.dasm | image.hex> <output.jar> [entry label...]
+	// Images are the emulator's input format, one hex word per line. Entry labels name
+	// code reached only indirectly, like a jump table's targets.
+	public static void main(String args[]) throws IOException {
+		if (args.length < 2 || (args.length > 2 && !args[0].endsWith(".dasm"))) {
+			System.err.println("Usage: AotCompiler <program.dasm | image.hex> <output.jar> [entry label...]");
+			System.exit(1);
+		}
+		String input = new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8);
+		List<Integer> entries = new ArrayList<>();
+		entries.add(0);
+		char[] memory = new char[DCPU.MEMORY_SIZE];
+		List<Character> code = new ArrayList<>();
+		if (args[0].endsWith(".dasm")) {
+			Assembler as = new Assembler();
+			code = as.assemble(input);
+			for (int i = 2; i < args.length; i++) {
+				Integer entry = as.labels.get(args[i].toUpperCase());
+				if (entry == null) {
+					System.err.println("Error: No label called " + args[i]);
+					System.exit(1);
+				}
+				entries.add(entry);
+			}
+		} else {
+			for (String word : input.trim().split("\\s+"))
+				code.add((char)Integer.parseInt(word, 16));
+		}
+		for (int i = 0; i < Math.min(code.size(), DCPU.MEMORY_SIZE); i++)
+			memory[i] = code.get(i);
+
+		AotCompiler compiler = new AotCompiler(memory);
+		TreeSet<Integer> blocks = compiler.discover(entries);
+		compiler.write(args[1], blocks);
+		System.err.println("Compiled " + blocks.size() + " blocks to " + args[1]);
+	}
+}
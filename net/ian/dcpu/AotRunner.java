@@ -0,0 +1,71 @@
+package net.ian.dcpu;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+// Runs a program compiled by AotCompiler, with the jar on the classpath next to the emulator.
+// The blocks go into a JitEngine, which drops them when they're overwritten like its own
+// and still compiles whatever the AotCompiler couldn't find.
+public class AotRunner {
+	// Loads the compiled image into cpu's memory and its blocks into engine. Returns the
+	// number of blocks loaded.
+	public static int load(DCPU cpu, JitEngine engine) throws IOException {
+		ClassLoader loader = AotRunner.class.getClassLoader();
+		char[] image = new char[DCPU.MEMORY_SIZE];
+		try (DataInputStream in = new DataInputStream(open(loader, AotCompiler.IMAGE))) {
+			for (int i = 0; i < image.length; i++)
+				image[i] = in.readChar();
+		}
+		cpu.clear(image);
+		cpu.setEngine(engine);
+
+		int count = 0;
+		try (BufferedReader index = new BufferedReader(new InputStreamReader(open(loader, AotCompiler.INDEX),
+				StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = index.readLine()) != null) {
+				String[] fields = line.split(" ");
+				int start = Integer.parseInt(fields[0], 16);
+				String name = (AotCompiler.PACKAGE + AotCompiler.blockName(start)).replace('/', '.');
+				CompiledBlock block;
+				try {
+					block = (CompiledBlock)Class.forName(name, true, loader).getDeclaredConstructor().newInstance();
+				} catch (ReflectiveOperationException e) {
+					throw new IOException("Couldn't load " + name, e);
+				}
+				block.start = start;
+				block.length = Integer.parseInt(fields[1]);
+				block.leadCycles = Integer.parseInt(fields[2]);
+				engine.preload(block);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static InputStream open(ClassLoader loader, String resource) throws IOException {
+		InputStream in = loader.getResourceAsStream(resource);
+		if (in == null)
+			throw new IOException("No compiled program on the classpath (missing " + resource + ")");
+		return in;
+	}
+
+	public static void main(String args[]) throws IOException {
+		DCPU cpu = new DCPU();
+		load(cpu, new JitEngine(cpu));
+		Monitor monitor = new Monitor(cpu);
+		Keyboard keyboard = new Keyboard(cpu);
+		new Clock(cpu);
+
+		cpu.panel = new MonitorPanel(monitor);
+		cpu.panel.addKeyListener(keyboard);
+		cpu.commandLine = true;
+		cpu.batchNotifications = true;
+		cpu.run();
+		System.out.print(cpu.dump());
+	}
+}
@@ -30,6 +30,8 @@ public class Assembler {
 	
 	public Map<String, Integer> labels;
 	public Map<Integer, String> fixes;
+	// The source line (counting from 1) each instruction and DAT starts on, by address.
+	public Map<Integer, Integer> lines;
 		
 	static {
 		DCPU.Register regs[] = DCPU.Register.values();
@@ -71,9 +73,11 @@ public class Assembler {
 		instructions = new ArrayList<Character>();
 		labels = new HashMap<String, Integer>();
 		fixes = new HashMap<Integer, String>();
+		lines = new HashMap<Integer, Integer>();
 		
-		String[] lines = code.trim().split("\\s*\n\\s*");
-		for (String line : lines) {
+		String[] source = code.split("\n");
+		for (int number = 1; number <= source.length; number++) {
+			String line = source[number - 1].trim();
 			// Comments
 			String[] c = line.split(";");
 
@@ -104,6 +108,7 @@ public class Assembler {
 			if (tokens.length < 2)
 				continue;
 
+			lines.put(instructions.size(), number);
 			if (tokens[0].equalsIgnoreCase("DAT")) {
 				instructions.addAll(parseDat(line));
 				continue;
@@ -0,0 +1,371 @@
+package net.ian.dcpu;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Translates basic blocks of DCPU code into CompiledBlock subclasses. A block starts at
+// a given address and ends after an IF, a JSR or anything else that writes PC, or just
+// before an instruction the compiler leaves to the interpreter (every other special
+// instruction, and unassigned opcodes). The generated code does exactly what the
+// reference Interpreter would, quirks and cycle counts included, with operand words
+// folded into constants.
+class BlockCompiler {
+	static final int MAX_INSTRUCTIONS = 64;
+	// The longest a block's source can be, in words.
+	static final int MAX_WORDS = MAX_INSTRUCTIONS * 3;
+
+	static final String DCPU_CLASS = "net/ian/dcpu/DCPU";
+	static final String BLOCK_CLASS = "net/ian/dcpu/CompiledBlock";
+
+	// Locals of the generated run(DCPU) method.
+	private static final int THIS = 0, CPU = 1, REGISTERS = 2, A = 3, B = 4, ADDR_A = 5, ADDR_B = 6, EX = 7;
+
+	// What an operand refers to.
+	private static final int REGISTER = 0, MEMORY = 1, SP = 2, PC = 3, EX_REGISTER = 4, LITERAL = 5;
+
+	private static final int I = DCPU.Register.I.ordinal();
+	private static final int J = DCPU.Register.J.ordinal();
+
+	// The instructions making up a block, found by plan().
+	static class Plan {
+		int start, count, words, leadCycles;
+		int[] addresses = new int[MAX_INSTRUCTIONS];
+	}
+
+	// Finds the block starting at start. Returns null if its first instruction can't be compiled.
+	Plan plan(char[] memory, int start) {
+		Plan plan = new Plan();
+		plan.start = start;
+		int pc = start, cycles = 0, lastCycles = 0;
+		while (plan.count < MAX_INSTRUCTIONS && pc < DCPU.MEMORY_SIZE) {
+			int insn = Instruction.decode(memory[pc]);
+			// Blocks don't wrap around the end of memory.
+			if (!canCompile(insn) || pc + Instruction.length(insn) > DCPU.MEMORY_SIZE)
+				break;
+			// An IF takes in the IFs chained to it and the instruction they guard, if they
+			// all compile. Otherwise it ends the block and the engine does the skipping.
+			int fused = Instruction.isConditional(insn) ? guarded(memory, pc, MAX_INSTRUCTIONS - plan.count) : 1;
+			boolean ends = fused == 0;
+			for (int i = 0; i < Math.max(fused, 1); i++) {
+				insn = Instruction.decode(memory[pc]);
+				plan.addresses[plan.count++] = pc;
+				// Count IFs as passing, the more expensive way.
+				lastCycles = Instruction.cycles(insn) + (Instruction.isConditional(insn) ? 1 : 0);
+				cycles += lastCycles;
+				pc += Instruction.length(insn);
+			}
+			if (ends || (fused == 1 && endsBlock(insn)))
+				break;
+		}
+		if (plan.count == 0)
+			return null;
+		plan.words = pc - start;
+		// Every instruction but the last starting before the cycle target means the
+		// interpreter would have run them all, whichever way the IFs go.
+		plan.leadCycles = cycles - lastCycles;
+		return plan;
+	}
+
+	// The number of instructions from the IF at pc through the instruction it guards, if
+	// they all compile and fit in room. Otherwise 0.
+	private static int guarded(char[] memory, int pc, int room) {
+		int count = 0, insn;
+		do {
+			if (count == room || pc >= DCPU.MEMORY_SIZE)
+				return 0;
+			insn = Instruction.decode(memory[pc]);
+			if (!canCompile(insn) || pc + Instruction.length(insn) > DCPU.MEMORY_SIZE)
+				return 0;
+			pc += Instruction.length(insn);
+			count++;
+		} while (Instruction.isConditional(insn));
+		return count;
+	}
+
+	private static boolean canCompile(int insn) {
+		int opcode = Instruction.opcode(insn);
+		if (Instruction.isSpecial(insn))
+			return opcode == 0x01; // JSR
+		return (opcode >= 0x01 && opcode <= 0x17) || opcode == 0x1a || opcode == 0x1b
+				|| opcode == 0x1e || opcode == 0x1f;
+	}
+
+	// Whether the instruction writes PC, so nothing after it runs.
+	private static boolean endsBlock(int insn) {
+		return Instruction.isSpecial(insn) || Instruction.b(insn) == 0x1c;
+	}
+
+	// Generates the class for a planned block, named with the internal (slash-separated) name.
+	byte[] generate(String className, char[] memory, Plan plan) {
+		ClassWriter cw = new ClassWriter(className, BLOCK_CLASS);
+
+		ClassWriter.Code init = new ClassWriter.Code(cw, 1, 1);
+		init.load(THIS).invoke(ClassWriter.Code.INVOKESPECIAL, BLOCK_CLASS, "<init>", "()V");
+		init.op(ClassWriter.Code.RETURN);
+		cw.addMethod(ClassWriter.ACC_PUBLIC, "<init>", "()V", init);
+
+		ClassWriter.Code code = new ClassWriter.Code(cw, 6, 8);
+		code.load(CPU).field(ClassWriter.Code.GETFIELD, DCPU_CLASS, "register", "[C").store(REGISTERS);
+
+		int[] cycleSums = new int[plan.count + 1];
+		for (int i = 0; i < plan.count; i++)
+			cycleSums[i + 1] = cycleSums[i] + Instruction.cycles(Instruction.decode(memory[plan.addresses[i]]));
+
+		// Branches taken by failed IFs, to just past the instruction they guard.
+		List<Integer> skips = new ArrayList<>();
+		boolean guarded = false, wrotePC = false;
+		int pcAfter = plan.start;
+		for (int i = 0; i < plan.count; i++) {
+			int address = plan.addresses[i];
+			int insn = Instruction.decode(memory[address]);
+			int cycles = cycleSums[i + 1];
+			pcAfter = address + Instruction.length(insn);
+			boolean last = i == plan.count - 1;
+
+			int next = address + 1;
+			int modeA = Instruction.a(insn), modeB = Instruction.b(insn);
+			int wordA = Instruction.hasNextWord(modeA) ? memory[next++] : 0;
+			int wordB = Instruction.hasNextWord(modeB) && !Instruction.isSpecial(insn) ? memory[next] : 0;
+			if (Instruction.isConditional(insn)) {
+				condition(code, Instruction.opcode(insn), modeA, wordA, modeB, wordB, pcAfter, last);
+				if (!last) {
+					// Skipping costs nothing, so take back what the rest of the chain and the
+					// guarded instruction would have cost before carrying on after them.
+					int branch = code.branch(ClassWriter.Code.IFNE);
+					int end = i + 1;
+					while (Instruction.isConditional(Instruction.decode(memory[plan.addresses[end]])))
+						end++;
+					adjust(code, "cycles", cycleSums[i + 1] - cycleSums[end + 1]);
+					adjust(code, "instructionCount", i - end);
+					skips.add(code.branch(ClassWriter.Code.GOTO));
+					code.bind(branch);
+					guarded = true;
+				}
+				continue;
+			}
+
+			if (Instruction.isSpecial(insn)) {
+				jsr(code, modeA, wordA, pcAfter);
+				wrotePC = true;
+			} else {
+				wrotePC = basic(code, Instruction.opcode(insn), modeA, wordA, modeB, wordB, pcAfter);
+				// A block can overwrite its own code; if it did, stop here and let the engine pick up.
+				if (!last && kind(modeB) == MEMORY) {
+					code.load(THIS).field(ClassWriter.Code.GETFIELD, BLOCK_CLASS, "valid", "Z");
+					int branch = code.branch(ClassWriter.Code.IFNE);
+					exit(code, cycles, i + 1, pcAfter);
+					code.bind(branch);
+				}
+			}
+			if (guarded) {
+				// A guarded jump leaves the block, and a skipped one carries on past it.
+				if (wrotePC)
+					exit(code, cycles, i + 1, -1);
+				for (int branch : skips)
+					code.bind(branch);
+				skips.clear();
+				wrotePC = guarded = false;
+			}
+		}
+		exit(code, cycleSums[plan.count], plan.count, wrotePC ? -1 : pcAfter);
+		cw.addMethod(ClassWriter.ACC_PUBLIC, "run", "(L" + DCPU_CLASS + ";)V", code);
+
+		return cw.toByteArray();
+	}
+
+	// Adds delta to the CPU's cycles or instructionCount.
+	private void adjust(ClassWriter.Code code, String counter, int delta) {
+		if (counter.equals("instructionCount")) {
+			code.load(CPU).op(ClassWriter.Code.DUP).field(ClassWriter.Code.GETFIELD, DCPU_CLASS, counter, "J");
+			code.push(delta).op(ClassWriter.Code.I2L).op(ClassWriter.Code.LADD).field(ClassWriter.Code.PUTFIELD, DCPU_CLASS, counter, "J");
+		} else {
+			code.load(CPU).op(ClassWriter.Code.DUP).field(ClassWriter.Code.GETFIELD, DCPU_CLASS, counter, "I");
+			code.push(delta).op(ClassWriter.Code.IADD).field(ClassWriter.Code.PUTFIELD, DCPU_CLASS, counter, "I");
+		}
+	}
+
+	private static int kind(int mode) {
+		if (mode <= 0x07)
+			return REGISTER;
+		if (mode <= 0x1a || mode == 0x1e)
+			return MEMORY;
+		if (mode == 0x1b)
+			return SP;
+		if (mode == 0x1c)
+			return PC;
+		if (mode == 0x1d)
+			return EX_REGISTER;
+		return LITERAL;
+	}
+
+	// Emits the basic instruction, returning whether it wrote PC.
+	private boolean basic(ClassWriter.Code code, int opcode, int modeA, int wordA, int modeB, int wordB, int pcAfter) {
+		resolve(code, modeA, wordA, true, ADDR_A);
+		resolve(code, modeB, wordB, false, ADDR_B);
+		load(code, modeA, wordA, ADDR_A, pcAfter);
+		code.istore(A);
+		load(code, modeB, wordB, ADDR_B, pcAfter);
+		code.istore(B);
+
+		switch (opcode) {
+		case 0x01: // SET
+		case 0x1e: // STI
+		case 0x1f: // STD
+			code.iload(A).istore(B).push(0).istore(EX);
+			break;
+		case 0x02: // ADD
+			code.iload(B).iload(A).op(ClassWriter.Code.IADD).op(ClassWriter.Code.DUP).istore(B);
+			code.push(16).op(ClassWriter.Code.IUSHR).istore(EX);
+			break;
+		case 0x03: // SUB
+			code.iload(B).iload(A).op(ClassWriter.Code.ISUB).op(ClassWriter.Code.DUP).istore(B);
+			code.push(16).op(ClassWriter.Code.ISHR).push(0xffff).op(ClassWriter.Code.IAND).istore(EX);
+			break;
+		case 0x04: // MUL
+			code.iload(B).iload(A).op(ClassWriter.Code.IMUL).op(ClassWriter.Code.DUP).istore(B);
+			code.push(16).op(ClassWriter.Code.ISHR).push(0xffff).op(ClassWriter.Code.IAND).istore(EX);
+			break;
+		case 0x0a: // AND
+		case 0x0b: // BOR
+		case 0x0c: // XOR
+			int op = opcode == 0x0a ? ClassWriter.Code.IAND : opcode == 0x0b ? ClassWriter.Code.IOR : ClassWriter.Code.IXOR;
+			code.iload(B).iload(A).op(op).istore(B).push(0).istore(EX);
+			break;
+		default:
+			code.push(opcode).iload(A).iload(B).invoke(ClassWriter.Code.INVOKESTATIC, BLOCK_CLASS, "alu", "(III)I");
+			code.op(ClassWriter.Code.DUP).push(0xffff).op(ClassWriter.Code.IAND).istore(B);
+			code.push(16).op(ClassWriter.Code.IUSHR).istore(EX);
+		}
+
+		if (opcode == 0x1e || opcode == 0x1f) {
+			int step = opcode == 0x1e ? ClassWriter.Code.IADD : ClassWriter.Code.ISUB;
+			for (int r : new int[] { I, J }) {
+				code.load(REGISTERS).push(r).load(REGISTERS).push(r).op(ClassWriter.Code.CALOAD);
+				code.push(1).op(step).op(ClassWriter.Code.I2C).op(ClassWriter.Code.CASTORE);
+			}
+			// The interpreter writes a back afterwards, which undoes the step when a is I or J.
+			if (modeA == I || modeA == J)
+				code.load(REGISTERS).push(modeA).iload(A).op(ClassWriter.Code.I2C).op(ClassWriter.Code.CASTORE);
+		}
+
+		// EX goes first so that a write to memory is the last thing the instruction does. If b is
+		// EX itself, EX ends up as the new EX either way.
+		code.load(CPU).iload(EX).op(ClassWriter.Code.I2C).field(ClassWriter.Code.PUTFIELD, DCPU_CLASS, "EX", "C");
+		if (kind(modeB) != EX_REGISTER)
+			store(code, modeB, ADDR_B, B);
+		return kind(modeB) == PC;
+	}
+
+	// Emits an IF. At the end of the block it sets up the skip for the engine; anywhere
+	// else it leaves whether the test passed on the stack, and the caller does the skipping.
+	private void condition(ClassWriter.Code code, int opcode, int modeA, int wordA, int modeB, int wordB, int pcAfter,
+			boolean last) {
+		resolve(code, modeA, wordA, true, ADDR_A);
+		resolve(code, modeB, wordB, false, ADDR_B);
+		load(code, modeA, wordA, ADDR_A, pcAfter);
+		code.istore(A);
+		load(code, modeB, wordB, ADDR_B, pcAfter);
+		code.istore(B);
+		code.load(CPU).push(0).field(ClassWriter.Code.PUTFIELD, DCPU_CLASS, "EX", "C");
+		code.load(CPU).push(opcode).iload(A).iload(B);
+		if (last)
+			code.invoke(ClassWriter.Code.INVOKESTATIC, BLOCK_CLASS, "test", "(L" + DCPU_CLASS + ";III)V");
+		else
+			code.invoke(ClassWriter.Code.INVOKESTATIC, BLOCK_CLASS, "passes", "(L" + DCPU_CLASS + ";III)Z");
+	}
+
+	private void jsr(ClassWriter.Code code, int modeA, int wordA, int pcAfter) {
+		resolve(code, modeA, wordA, true, ADDR_A);
+		load(code, modeA, wordA, ADDR_A, pcAfter);
+		code.istore(A);
+		code.load(CPU).load(CPU).field(ClassWriter.Code.GETFIELD, DCPU_CLASS, "SP", "C");
+		code.push(1).op(ClassWriter.Code.ISUB).op(ClassWriter.Code.I2C).field(ClassWriter.Code.PUTFIELD, DCPU_CLASS, "SP", "C");
+		code.load(CPU).load(CPU).field(ClassWriter.Code.GETFIELD, DCPU_CLASS, "SP", "C").push(pcAfter);
+		code.invoke(ClassWriter.Code.INVOKEVIRTUAL, DCPU_CLASS, "write", "(II)V");
+		code.load(CPU).iload(A).op(ClassWriter.Code.I2C).field(ClassWriter.Code.PUTFIELD, DCPU_CLASS, "PC", "C");
+		// Special instructions write a back too, which matters for JSR SP and JSR POP.
+		int kind = kind(modeA);
+		if (kind == REGISTER || kind == MEMORY || kind == SP)
+			store(code, modeA, ADDR_A, A);
+	}
+
+	// Works out an operand's address (for memory operands) into the given local, along
+	// with its side effects on SP.
+	private void resolve(ClassWriter.Code code, int mode, int word, boolean isA, int addr) {
+		if (mode >= 0x08 && mode <= 0x0f) {
+			code.load(REGISTERS).push(mode - 0x08).op(ClassWriter.Code.CALOAD).istore(addr);
+		} else if (mode >= 0x10 && mode <= 0x17) {
+			code.push(word).load(REGISTERS).push(mode - 0x10).op(ClassWriter.Code.CALOAD).op(ClassWriter.Code.IADD);
+			code.push(0xffff).op(ClassWriter.Code.IAND).istore(addr);
+		} else if (mode == 0x18 && isA) { // POP
+			code.load(CPU).field(ClassWriter.Code.GETFIELD, DCPU_CLASS, "SP", "C").istore(addr);
+			code.load(CPU).iload(addr).push(1).op(ClassWriter.Code.IADD).op(ClassWriter.Code.I2C);
+			code.field(ClassWriter.Code.PUTFIELD, DCPU_CLASS, "SP", "C");
+		} else if (mode == 0x18) { // PUSH
+			code.load(CPU).field(ClassWriter.Code.GETFIELD, DCPU_CLASS, "SP", "C");
+			code.push(1).op(ClassWriter.Code.ISUB).op(ClassWriter.Code.I2C).istore(addr);
+			code.load(CPU).iload(addr).field(ClassWriter.Code.PUTFIELD, DCPU_CLASS, "SP", "C");
+		} else if (mode == 0x19) { // PEEK
+			code.load(CPU).field(ClassWriter.Code.GETFIELD, DCPU_CLASS, "SP", "C").istore(addr);
+		} else if (mode == 0x1a) { // PICK n
+			code.load(CPU).field(ClassWriter.Code.GETFIELD, DCPU_CLASS, "SP", "C").push(word).op(ClassWriter.Code.IADD);
+			code.push(0xffff).op(ClassWriter.Code.IAND).istore(addr);
+		} else if (mode == 0x1e) { // [next word]
+			code.push(word).istore(addr);
+		}
+	}
+
+	// Pushes an operand's value.
+	private void load(ClassWriter.Code code, int mode, int word, int addr, int pcAfter) {
+		switch (kind(mode)) {
+		case REGISTER:
+			code.load(REGISTERS).push(mode).op(ClassWriter.Code.CALOAD);
+			break;
+		case MEMORY:
+			code.load(CPU).iload(addr).invoke(ClassWriter.Code.INVOKEVIRTUAL, DCPU_CLASS, "read", "(I)C");
+			break;
+		case SP:
+			code.load(CPU).field(ClassWriter.Code.GETFIELD, DCPU_CLASS, "SP", "C");
+			break;
+		case PC:
+			// By the time operands are read, PC has moved past the whole instruction.
+			code.push(pcAfter);
+			break;
+		case EX_REGISTER:
+			code.load(CPU).field(ClassWriter.Code.GETFIELD, DCPU_CLASS, "EX", "C");
+			break;
+		default:
+			code.push(mode == 0x1f ? word : (mode - 0x21) & 0xffff);
+		}
+	}
+
+	// Stores the value in the given local to an operand. Writes to literals are ignored.
+	private void store(ClassWriter.Code code, int mode, int addr, int value) {
+		switch (kind(mode)) {
+		case REGISTER:
+			code.load(REGISTERS).push(mode).iload(value).op(ClassWriter.Code.I2C).op(ClassWriter.Code.CASTORE);
+			break;
+		case MEMORY:
+			code.load(CPU).iload(addr).iload(value).invoke(ClassWriter.Code.INVOKEVIRTUAL, DCPU_CLASS, "write", "(II)V");
+			break;
+		case SP:
+			code.load(CPU).iload(value).op(ClassWriter.Code.I2C).field(ClassWriter.Code.PUTFIELD, DCPU_CLASS, "SP", "C");
+			break;
+		case PC:
+			code.load(CPU).iload(value).op(ClassWriter.Code.I2C).field(ClassWriter.Code.PUTFIELD, DCPU_CLASS, "PC", "C");
+			break;
+		case EX_REGISTER:
+			code.load(CPU).iload(value).op(ClassWriter.Code.I2C).field(ClassWriter.Code.PUTFIELD, DCPU_CLASS, "EX", "C");
+			break;
+		}
+	}
+
+	// Charges the cycles and instructions executed so far, sets PC unless pc is -1, and returns.
+	private void exit(ClassWriter.Code code, int cycles, int instructions, int pc) {
+		if (pc >= 0)
+			code.load(CPU).push(pc).field(ClassWriter.Code.PUTFIELD, DCPU_CLASS, "PC", "C");
+		adjust(code, "cycles", cycles);
+		adjust(code, "instructionCount", instructions);
+		code.op(ClassWriter.Code.RETURN);
+	}
+}
@@ -0,0 +1,251 @@
+package net.ian.dcpu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+// Just enough of a class file writer for BlockCompiler: a constant pool, methods with
+// straight-line code and forward branches, and nothing else. Classes are written as
+// version 49 (Java 5), which the JVM verifies without needing stack map frames.
+class ClassWriter {
+	private static final int VERSION = 49;
+
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_FINAL = 0x0010;
+	static final int ACC_SUPER = 0x0020;
+
+	private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+	private final DataOutputStream pool = new DataOutputStream(poolBytes);
+	private final Map<String, Integer> constants = new HashMap<>();
+	private int poolSize = 1;
+
+	private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+	private final DataOutputStream methods = new DataOutputStream(methodBytes);
+	private int methodCount;
+
+	private final String name, superName;
+
+	ClassWriter(String name, String superName) {
+		this.name = name;
+		this.superName = superName;
+	}
+
+	int utf8(String s) {
+		Integer index = constants.get("U" + s);
+		if (index != null)
+			return index;
+		try {
+			pool.writeByte(1);
+			pool.writeUTF(s);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		return add("U" + s, 1);
+	}
+
+	int integer(int value) {
+		Integer index = constants.get("I" + value);
+		if (index != null)
+			return index;
+		try {
+			pool.writeByte(3);
+			pool.writeInt(value);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		return add("I" + value, 1);
+	}
+
+	int classRef(String internalName) {
+		return ref("C", 7, utf8(internalName), -1);
+	}
+
+	int fieldRef(String owner, String name, String desc) {
+		return ref("F", 9, classRef(owner), nameAndType(name, desc));
+	}
+
+	int methodRef(String owner, String name, String desc) {
+		return ref("M", 10, classRef(owner), nameAndType(name, desc));
+	}
+
+	private int nameAndType(String name, String desc) {
+		return ref("N", 12, utf8(name), utf8(desc));
+	}
+
+	private int ref(String kind, int tag, int first, int second) {
+		String key = kind + first + "," + second;
+		Integer index = constants.get(key);
+		if (index != null)
+			return index;
+		try {
+			pool.writeByte(tag);
+			pool.writeShort(first);
+			if (second >= 0)
+				pool.writeShort(second);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		return add(key, 1);
+	}
+
+	private int add(String key, int slots) {
+		int index = poolSize;
+		poolSize += slots;
+		constants.put(key, index);
+		return index;
+	}
+
+	void addMethod(int access, String name, String desc, Code code) {
+		int nameIndex = utf8(name), descIndex = utf8(desc), codeIndex = utf8("Code");
+		try {
+			methods.writeShort(access);
+			methods.writeShort(nameIndex);
+			methods.writeShort(descIndex);
+			methods.writeShort(1);
+			methods.writeShort(codeIndex);
+			methods.writeInt(12 + code.length);
+			methods.writeShort(code.maxStack);
+			methods.writeShort(code.maxLocals);
+			methods.writeInt(code.length);
+			methods.write(code.bytes, 0, code.length);
+			methods.writeShort(0); // Exception table
+			methods.writeShort(0); // Attributes
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		methodCount++;
+	}
+
+	byte[] toByteArray() {
+		int thisIndex = classRef(name), superIndex = classRef(superName);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(VERSION);
+			out.writeShort(poolSize);
+			poolBytes.writeTo(out);
+			out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisIndex);
+			out.writeShort(superIndex);
+			out.writeShort(0); // Interfaces
+			out.writeShort(0); // Fields
+			out.writeShort(methodCount);
+			methodBytes.writeTo(out);
+			out.writeShort(0); // Attributes
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	// A method body. Only the opcodes BlockCompiler needs have names here.
+	static class Code {
+		static final int ALOAD = 0x19, ASTORE = 0x3a, ILOAD = 0x15, ISTORE = 0x36;
+		static final int CALOAD = 0x34, CASTORE = 0x55;
+		static final int IADD = 0x60, ISUB = 0x64, IMUL = 0x68, IAND = 0x7e, IOR = 0x80, IXOR = 0x82;
+		static final int ISHR = 0x7a, IUSHR = 0x7c, I2C = 0x92, I2L = 0x85, LADD = 0x61;
+		static final int DUP = 0x59, RETURN = 0xb1;
+		static final int GETFIELD = 0xb4, PUTFIELD = 0xb5;
+		static final int INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+		static final int IFEQ = 0x99, IFNE = 0x9a, GOTO = 0xa7;
+
+		private final ClassWriter cw;
+		byte[] bytes = new byte[256];
+		int length;
+		int maxStack, maxLocals;
+
+		Code(ClassWriter cw, int maxStack, int maxLocals) {
+			this.cw = cw;
+			this.maxStack = maxStack;
+			this.maxLocals = maxLocals;
+		}
+
+		Code op(int opcode) {
+			u1(opcode);
+			return this;
+		}
+
+		Code load(int local) {
+			return local(ALOAD, local);
+		}
+
+		Code store(int local) {
+			return local(ASTORE, local);
+		}
+
+		Code iload(int local) {
+			return local(ILOAD, local);
+		}
+
+		Code istore(int local) {
+			return local(ISTORE, local);
+		}
+
+		private Code local(int opcode, int local) {
+			u1(opcode);
+			u1(local);
+			return this;
+		}
+
+		Code push(int value) {
+			if (value >= -1 && value <= 5) {
+				u1(0x03 + value); // iconst_<n>
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				u1(0x10); // bipush
+				u1(value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				u1(0x11); // sipush
+				u2(value);
+			} else {
+				u1(0x13); // ldc_w
+				u2(cw.integer(value));
+			}
+			return this;
+		}
+
+		Code field(int opcode, String owner, String name, String desc) {
+			u1(opcode);
+			u2(cw.fieldRef(owner, name, desc));
+			return this;
+		}
+
+		Code invoke(int opcode, String owner, String name, String desc) {
+			u1(opcode);
+			u2(cw.methodRef(owner, name, desc));
+			return this;
+		}
+
+		// Emits a forward branch and returns its position, for bind().
+		int branch(int opcode) {
+			int at = length;
+			u1(opcode);
+			u2(0);
+			return at;
+		}
+
+		// Points the branch at the current position.
+		void bind(int branch) {
+			int offset = length - branch;
+			bytes[branch + 1] = (byte)(offset >> 8);
+			bytes[branch + 2] = (byte)offset;
+		}
+
+		private void u1(int b) {
+			if (length == bytes.length) {
+				byte[] grown = new byte[bytes.length * 2];
+				System.arraycopy(bytes, 0, grown, 0, length);
+				bytes = grown;
+			}
+			bytes[length++] = (byte)b;
+		}
+
+		private void u2(int s) {
+			u1(s >> 8);
+			u1(s);
+		}
+	}
+}
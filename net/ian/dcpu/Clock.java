@@ -1,5 +1,7 @@
 package net.ian.dcpu;
 
+import java.nio.ByteBuffer;
+
 import net.ian.dcpu.DCPU.Register;
 
 public class Clock extends Hardware {
@@ -8,51 +10,84 @@ public class Clock extends Hardware {
 	public static final int MANUFACTURER = 0xB65100;
 	
 	private DCPU cpu;
-	private double interval;
-	private long lastTime, time;
+	// Ticks happen every rate / 60 seconds, counted from start (in CPU cycles) so they don't drift.
+	// A rate of 0 means the clock is off.
+	private int rate;
+	private long start, scheduled;
 	private char ticks;
 	private char interruptMsg;
 	
+	private final Runnable tick = new Runnable() {
+		public void run() {
+			ticks++;
+			if (interruptMsg != 0)
+				cpu.interrupt(interruptMsg);
+			scheduleTick();
+		}
+	};
+	
 	public Clock(DCPU cpu) {
 		super(ID, VERSION, MANUFACTURER);
 		this.cpu = cpu;
 		cpu.attachDevice(this);
 	}
 	
-	public void tick() {
-		if (interval == 0)
-			return;
-		if (lastTime == 0) {
-			lastTime = System.currentTimeMillis();
-			return;
-		}
-		
-		time += System.currentTimeMillis() - lastTime;
-		lastTime = System.currentTimeMillis();
-		if (time > interval) {
-			ticks += time / interval;
-			time %= interval;
-			if (interruptMsg != 0) {
-				cpu.interrupt(interruptMsg);
-			}
+	private void scheduleTick() {
+		scheduled++;
+		cpu.scheduler.scheduleAt(start + scheduled * cpu.hz * rate / 60, tick);
+	}
+	
+	@Override
+	public Hardware copyFor(DCPU cpu) {
+		return new Clock(cpu);
+	}
+	
+	@Override
+	public int stateSize() {
+		return 4 + 8 + 8 + 2 + 2;
+	}
+	
+	@Override
+	public void saveState(ByteBuffer out) {
+		out.putInt(rate).putLong(start).putLong(scheduled).putChar(ticks).putChar(interruptMsg);
+	}
+	
+	@Override
+	public void loadState(ByteBuffer in) {
+		rate = in.getInt();
+		start = in.getLong();
+		scheduled = in.getLong();
+		ticks = in.getChar();
+		interruptMsg = in.getChar();
+		// The tick that was pending when the snapshot was taken.
+		cpu.scheduler.cancel(tick);
+		if (rate != 0) {
+			scheduled--;
+			scheduleTick();
 		}
 	}
 	
+	// Reading the ticks and setting the message; starting the clock again resets it.
+	@Override
+	public boolean isIdempotent(int a) {
+		return a == 1 || a == 2;
+	}
+	
 	public void interrupt() {
-		char b = cpu.getRegister(Register.B).value;
-		switch (cpu.getRegister(Register.A).value) {
+		char b = cpu.getRegister(Register.B);
+		switch (cpu.getRegister(Register.A)) {
 		case 0: // If B is 0, disable clock. Otherwise tick 60 / B times per second.
 			ticks = 0;
-			if (b == 0) {
-				interval = 0;
-				lastTime = 0;
+			cpu.scheduler.cancel(tick);
+			rate = b;
+			if (b == 0)
 				return;
-			}
-			interval = (double)1 / (6 / b) * 100; // Same as 1 / (60 / b) * 1000
-			lastTime = System.currentTimeMillis();
+			start = cpu.elapsedCycles();
+			scheduled = 0;
+			scheduleTick();
 			break;
 		case 1: // Set C to number of ticks since this interrupt was called with A = 0.
-			cpu.getRegister(Register.C).set(ticks);
+			cpu.setRegister(Register.C, ticks);
 			break;
 		case 2: // Set interrupt message to B (interrupts disabled if B = 0).
 			interruptMsg = b;
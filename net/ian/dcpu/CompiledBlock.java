@@ -0,0 +1,112 @@
+package net.ian.dcpu;
+
+// A run of DCPU instructions translated to JVM bytecode by BlockCompiler. The subclasses
+// are generated at run time and live in their own class loaders, so they can only reach
+// public members of DCPU; the helpers here cover what they don't do inline.
+public abstract class CompiledBlock implements Cloneable {
+	// The block was translated from memory[start, start + length).
+	public int start, length;
+	// Cycles taken by every instruction but the last. If a run has room for these,
+	// the interpreter would have executed the whole block too.
+	public int leadCycles;
+	// Cleared when something writes over the block's source. The block checks it after
+	// each of its own writes, and stops early if it has just overwritten itself.
+	public boolean valid = true;
+
+	public abstract void run(DCPU cpu);
+
+	// The same block, for another engine running the same code.
+	CompiledBlock copy() {
+		try {
+			CompiledBlock copy = (CompiledBlock)clone();
+			copy.valid = true;
+			return copy;
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	// Runs the block if it fits before untilCycles. Returns whether it ran.
+	boolean run(DCPU cpu, int untilCycles) {
+		if (cpu.cycles + leadCycles >= untilCycles)
+			return false;
+		run(cpu);
+		return true;
+	}
+
+	// Basic instructions that aren't inlined. Returns the new b in the low 16 bits and EX in
+	// the high 16, computed exactly as the reference Interpreter does.
+	protected static int alu(int opcode, int a, int b) {
+		int ex = 0;
+		switch (opcode) {
+		case 0x05: // MLI
+			b = (short)a * (short)b;
+			ex = b >> 16;
+			break;
+		case 0x06: // DIV
+			if (a == 0) {
+				b = 0;
+			} else {
+				ex = (b << 16) / a;
+				b /= a;
+			}
+			break;
+		case 0x07: // DVI
+			if (a == 0) {
+				b = 0;
+			} else {
+				ex = ((short)b << 16) / (short)a;
+				b = (short)b / (short)a;
+			}
+			break;
+		case 0x08: // MOD
+			b = (a == 0) ? 0 : b % a;
+			break;
+		case 0x09: // MDI, falling through into AND
+			b = ((a == 0) ? 0 : (short)b % (short)a) & a;
+			break;
+		case 0x0d: // SHR
+			ex = b << 16 >> a;
+			b >>>= a;
+			break;
+		case 0x0e: // ASR
+			ex = b << 16 >>> a;
+			b >>= a;
+			break;
+		case 0x0f: // SHL
+			ex = b << a >> 16;
+			b = b << a;
+			break;
+		case 0x1a: // ADX
+			ex = (b += a) > 0xffff ? 1 : 0;
+			break;
+		case 0x1b: // SBX
+			ex = (b -= a) < 0 ? 0xffff : 0;
+			break;
+		}
+		return ex << 16 | (b & 0xffff);
+	}
+
+	// IFs at the end of a block. Sets up the skip for the engine.
+	protected static void test(DCPU cpu, int opcode, int a, int b) {
+		cpu.skipping = !passes(cpu, opcode, a, b);
+	}
+
+	// IFs. Returns whether the test passed, charging the extra cycle if it did.
+	protected static boolean passes(DCPU cpu, int opcode, int a, int b) {
+		boolean pass;
+		switch (opcode) {
+		case 0x10: pass = (b & a) != 0; break; // IFB
+		case 0x11: pass = (b & a) == 0; break; // IFC
+		case 0x12: pass = b == a; break; // IFE
+		case 0x13: pass = b != a; break; // IFN
+		case 0x14: pass = b > a; break; // IFG
+		case 0x15: pass = (short)b > (short)a; break; // IFA
+		case 0x16: pass = b < a; break; // IFL
+		default: pass = (short)b < (short)a; break; // IFU
+		}
+		if (pass)
+			cpu.cycles++;
+		return pass;
+	}
+}
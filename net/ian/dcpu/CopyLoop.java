@@ -0,0 +1,157 @@
+package net.ian.dcpu;
+
+import java.util.Arrays;
+
+// The usual way to copy or fill memory on the DCPU:
+//   :loop STI [I], [J]    (or STI [I], X / STI [I], 0 to fill, or STD to go backwards)
+//         IFN I, end      (counting on I or J, up to a literal or another register)
+//         SET PC, loop
+// JitEngine runs these as one bulk write instead of three instructions a word, charging
+// the same cycles and leaving I, J and EX as the loop would. The last time round, when
+// the IFN falls through, is left to the normal path, as is any loop that would write
+// over its own code.
+class CopyLoop extends CompiledBlock {
+	private static final int I = DCPU.Register.I.ordinal();
+	private static final int J = DCPU.Register.J.ordinal();
+
+	// 1 for STI, -1 for STD.
+	private int step;
+	// Registers holding the destination, the source (or -1 for a fill) and the counter.
+	private int destRegister, sourceRegister, counterRegister;
+	// What a fill writes: a register's value, or a literal if fillRegister is -1.
+	private int fillRegister = -1;
+	private char fillValue;
+	// Where the counter stops: a register's value, or a literal if endRegister is -1.
+	private int endRegister = -1;
+	private char endValue;
+	// Cycles per time round the loop.
+	private int period;
+
+	private char[] values = new char[0];
+
+	// Returns the loop starting at start, or null if there isn't one.
+	static CopyLoop match(char[] memory, int start) {
+		CopyLoop loop = new CopyLoop();
+		int pc = start;
+
+		// STI/STD [I] or [J], with a copy of the other one, a register or a literal
+		int copy = Instruction.decode(memory[pc]);
+		int op = Instruction.opcode(copy), b = Instruction.b(copy), a = Instruction.a(copy);
+		if (Instruction.isSpecial(copy) || (op != 0x1e && op != 0x1f) || (b != 0x0e && b != 0x0f))
+			return null;
+		loop.step = op == 0x1e ? 1 : -1;
+		loop.destRegister = b - 0x08;
+		loop.sourceRegister = -1;
+		if ((a == 0x0e || a == 0x0f) && a != b)
+			loop.sourceRegister = a - 0x08;
+		else if (a <= 0x07 && a != I && a != J)
+			loop.fillRegister = a;
+		else if (a == 0x1f && pc + 1 < DCPU.MEMORY_SIZE)
+			loop.fillValue = memory[pc + 1];
+		else if (a >= 0x20)
+			loop.fillValue = (char)(a - 0x21);
+		else
+			return null;
+		pc += Instruction.length(copy);
+
+		// IFN I or J, with a register or a literal
+		if (pc >= DCPU.MEMORY_SIZE)
+			return null;
+		int test = Instruction.decode(memory[pc]);
+		b = Instruction.b(test);
+		a = Instruction.a(test);
+		if (Instruction.isSpecial(test) || Instruction.opcode(test) != 0x13 || (b != I && b != J))
+			return null;
+		loop.counterRegister = b;
+		if (a <= 0x07 && a != I && a != J)
+			loop.endRegister = a;
+		else if (a == 0x1f && pc + 1 < DCPU.MEMORY_SIZE)
+			loop.endValue = memory[pc + 1];
+		else if (a >= 0x20)
+			loop.endValue = (char)(a - 0x21);
+		else
+			return null;
+		pc += Instruction.length(test);
+
+		// SET PC, loop
+		if (pc >= DCPU.MEMORY_SIZE)
+			return null;
+		int jump = Instruction.decode(memory[pc]);
+		a = Instruction.a(jump);
+		if (Instruction.isSpecial(jump) || Instruction.opcode(jump) != 0x01 || Instruction.b(jump) != 0x1c)
+			return null;
+		int target = a == 0x1f && pc + 1 < DCPU.MEMORY_SIZE ? memory[pc + 1] : a >= 0x20 ? (a - 0x21) & 0xffff : -1;
+		if (target != start)
+			return null;
+		pc += Instruction.length(jump);
+		if (pc > DCPU.MEMORY_SIZE)
+			return null;
+
+		loop.start = start;
+		loop.length = pc - start;
+		// The IFN's test passes every time but the last, which costs a cycle.
+		loop.period = Instruction.cycles(copy) + Instruction.cycles(test) + 1 + Instruction.cycles(jump);
+		loop.leadCycles = loop.period - Instruction.cycles(jump);
+		return loop;
+	}
+
+	@Override
+	CompiledBlock copy() {
+		CopyLoop copy = (CopyLoop)super.copy();
+		copy.values = new char[0];
+		return copy;
+	}
+
+	@Override
+	public void run(DCPU cpu) {
+		run(cpu, Integer.MAX_VALUE);
+	}
+
+	@Override
+	boolean run(DCPU cpu, int untilCycles) {
+		char[] register = cpu.register;
+		int end = endRegister >= 0 ? register[endRegister] : endValue;
+		// Times round before the one where the counter reaches end.
+		int count = ((end - register[counterRegister]) * step & 0xffff) - 1;
+		// Each time round has to get as far as the SET PC before untilCycles.
+		int room = untilCycles - cpu.cycles - leadCycles;
+		if (count <= 0 || room <= 0)
+			return false;
+		count = Math.min(count, (room - 1) / period + 1);
+
+		int dest = register[destRegister];
+		int low = (step > 0 ? dest : dest - count + 1) & 0xffff;
+		for (int addr = start; addr < start + length; addr++) {
+			if (((addr - low) & 0xffff) < count)
+				return false;
+		}
+
+		if (values.length < count)
+			values = new char[Math.max(count, values.length * 2)];
+		if (sourceRegister >= 0) {
+			int source = register[sourceRegister];
+			// Once the destination catches up with the source, the loop reads back what it wrote.
+			int distance = (dest - source) * step & 0xffff;
+			for (int k = 0; k < count; k++)
+				values[k] = distance > 0 && distance <= k ? values[k - distance] : cpu.read(source + k * step);
+		} else {
+			char value = fillRegister >= 0 ? register[fillRegister] : fillValue;
+			Arrays.fill(values, 0, count, value);
+		}
+		if (step < 0) {
+			for (int k = 0, l = count - 1; k < l; k++, l--) {
+				char tmp = values[k];
+				values[k] = values[l];
+				values[l] = tmp;
+			}
+		}
+		cpu.write(low, values, 0, count);
+
+		register[I] += count * step;
+		register[J] += count * step;
+		cpu.EX = 0;
+		cpu.cycles += count * period;
+		cpu.instructionCount += 3 * count;
+		return true;
+	}
+}
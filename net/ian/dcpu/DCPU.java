@@ -1,30 +1,117 @@
 package net.ian.dcpu;
 
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
+import javax.management.JMException;
 import javax.swing.JFrame;
 
 public class DCPU implements Runnable {
 	public enum Register { A, B, C, X, Y, Z, I, J }
 
-	public Cell[] register;
-	public MemoryCell[] memory;
-	public Cell SP, PC, EX, IA;
+	public static final int MEMORY_SIZE = 0x10000;
+	
+	public char[] register;
+	// Copy-on-write, so fork() can share it. See Memory.
+	public final Memory memory;
+	public char SP, PC, EX, IA;
 	// If true, interrupts are queued. If false, they are triggered.
 	boolean iaq = false;
-	char interrupts[] = new char[256];
-	char intCurPtr, intEndPtr;
+	// Interrupts waiting to be triggered. Any thread can add to it through interrupt().
+	public final InterruptQueue interrupts = new InterruptQueue();
+	// Set when more interrupts came in than the queue holds, which stops the CPU.
+	public volatile boolean onFire;
 	
 	public List<Hardware> devices = new ArrayList<>();
-	public List<MemoryListener> listeners = new ArrayList<>();
 	
-	public boolean running = false;
-	private boolean skipping = false;
+	// Memory watches, indexed by 256-word page. A page nobody watches is null, so
+	// unwatched accesses only cost a lookup. Read watches are opt-in.
+	private static class Watch {
+		final MemoryListener listener;
+		final int start, length;
+		final boolean reads;
+		
+		Watch(MemoryListener listener, int start, int length, boolean reads) {
+			this.listener = listener;
+			this.start = start;
+			this.length = length;
+			this.reads = reads;
+		}
+	}
+	private List<Watch> watches = new ArrayList<>();
+	private MemoryListener[][] writeWatchers = new MemoryListener[256][];
+	private MemoryListener[][] readWatchers = new MemoryListener[256][];
+	private MemoryListener[] watchingListeners = new MemoryListener[0];
+	
+	// If true, writes to watched memory only mark a dirty bitmap, and listeners hear
+	// about them in one onRangeDirty() call per frame instead of one onSet() per write.
+	public boolean batchNotifications;
+	private BitSet dirty = new BitSet(MEMORY_SIZE);
+	
+	// Whether the program hasn't exited. Only the thread running the CPU changes it (EXIT
+	// clears it; clear(), step() and the run methods set it); everyone else reads it
+	// through hasExited(), and other threads go through stop(), pause() and resume().
+	boolean running = true;
+	// Requests from other threads, looked at once a slice rather than once an instruction.
+	private volatile boolean stopRequested, pauseRequested;
+	// The thread running the CPU, if any.
+	private volatile Thread runner;
+	// Set after a failed IF, so the next step skips an instruction.
+	boolean skipping = false;
+	
+	// Executes the instructions. The reference Interpreter unless someone swaps in another engine.
+	public Engine engine = new Interpreter(this);
+	// Pages holding code an engine has compiled. Writes to them go through Engine.invalidate().
+	final boolean[] codePages = new boolean[256];
+	
+	public long instructionCount;
+	public int cycles;
+	// Cycles run before the current frame; run() keeps cycles itself within the frame.
+	long cycleBase;
+	// Frames ended so far, which places the next frame's share of hz (see frameCycles()).
+	long frames;
+	// instructionCount and elapsedCycles() as of the end of the last slice, for other
+	// threads, which would otherwise see the counters half way through an update.
+	private volatile long publishedInstructions, publishedCycles;
+	// The clock rate run() emulates, in cycles per second of emulated time.
+	public volatile int hz = 100_000;
+	// How fast emulated time goes by in run().
+	public Governor governor = new Governor();
+	
+	// Device events, timed in cycles.
+	public Scheduler scheduler = new Scheduler(this);
+	// Counts writes that changed memory, so IdleDetector can tell whether a loop did anything.
+	int memoryChanges;
+	
+	// Records history so a debugger can go backwards, if set. See Journal.
+	public Journal journal;
+
+	// Records every instruction to a file, if set. See TraceRecorder.
+	public TraceRecorder trace;
+	
+	// Counts where the program spends its cycles, if set. See Profiler.
+	public Profiler profiler;
+	
+	// Times the host's side of things for monitoring, if set. See Metrics.
+	public volatile Metrics metrics;
 	
-	public int instructionCount, cycles;
+	// Skips over loops that just wait. See IdleDetector.
+	private static final int IDLE_CHECK = 256;
+	public IdleDetector idleDetector = new IdleDetector(this);
+	// The thread in run(), while it waits out an idle frame.
+	private volatile Thread parked;
+	private volatile boolean woken;
 	
 	public static final boolean debug = false;
 	
@@ -39,42 +126,73 @@ public class DCPU implements Runnable {
 	}
 
 	public DCPU(char[] mem) {
-		register = new Cell[Register.values().length];
-		for (int i = 0; i < Register.values().length; i++)
-			register[i] = new Cell(0);
-		memory = new MemoryCell[0x10000]; // 0x10000 words in size
-		for (int i = 0; i < 0x10000; i++)
-			memory[i] = new MemoryCell(this, (char)i, i < mem.length ? mem[i] : 0);
-
-		SP = new Cell(0);
-		PC = new Cell(0);
-		EX = new Cell(0);
-		IA = new Cell(0);
+		this(new Memory());
+		memory.set(0, mem, 0, Math.min(mem.length, MEMORY_SIZE));
+	}
+	
+	private DCPU(Memory memory) {
+		register = new char[Register.values().length];
+		this.memory = memory;
 	}
 	
 	public DCPU(List<Character> mem) {
 		this(unboxArray(mem));
 	}
 	
-	// Code duplication... :/
 	public void clear(char[] mem) {
-		for (int i = 0; i < Register.values().length; i++)
-			register[i].value = 0;
+		Arrays.fill(register, (char)0);
 		
-		for (int i = 0; i < 0x10000; i++)
-			memory[i].value = i < mem.length ? mem[i] : 0;
+		memory.clear();
+		memory.set(0, mem, 0, Math.min(mem.length, MEMORY_SIZE));
 			
-		intEndPtr = intCurPtr = 0;
-		for (int i = 0; i < 256; i++)
-			interrupts[i] = 0;
+		interrupts.clear();
 		iaq = false;
+		onFire = false;
 			
-		SP.value = 0;
-		PC.value = 0;
-		EX.value = 0;
-		IA.value = 0;
+		SP = PC = EX = IA = 0;
 		
 		instructionCount = 0;
+		running = true;
+		publish();
+		forgetCode();
+	}
+	
+	// A copy of this machine, sharing its memory until either of them writes to it (a page
+	// at a time), with the same kind of engine and copies of its devices. Only fork a
+	// CPU nothing is running.
+	public DCPU fork() {
+		DCPU child = new DCPU(memory.fork());
+		System.arraycopy(register, 0, child.register, 0, register.length);
+		child.SP = SP;
+		child.PC = PC;
+		child.EX = EX;
+		child.IA = IA;
+		child.iaq = iaq;
+		child.skipping = skipping;
+		child.onFire = onFire;
+		for (char msg : interrupts.waiting())
+			child.interrupts.offer(msg);
+		child.instructionCount = instructionCount;
+		child.cycles = cycles;
+		child.cycleBase = cycleBase;
+		child.frames = frames;
+		child.publish();
+		child.hz = hz;
+		child.governor.percent = governor.percent;
+		child.governor.turbo = governor.turbo;
+		child.batchNotifications = batchNotifications;
+		child.labels = labels;
+		child.engine = engine.copyFor(child);
+		
+		// Devices attach themselves to the child as they're made, in the same order.
+		for (Hardware device : devices) {
+			Hardware copy = device.copyFor(child);
+			ByteBuffer state = ByteBuffer.allocate(device.stateSize());
+			device.saveState(state);
+			state.flip();
+			copy.loadState(state);
+		}
+		return child;
 	}
 	
 	public void clear(List<Character> mem) {
@@ -83,8 +201,16 @@ public class DCPU implements Runnable {
 	
 	public void setMemory(List<Character> listMem) {
 		char[] mem = unboxArray(listMem);
-		for (int i = 0; i < mem.length; i++)
-			memory[i].value = mem[i];
+		memory.set(0, mem, 0, Math.min(mem.length, MEMORY_SIZE));
+		forgetCode();
+	}
+	
+	// Drops whatever the engine compiled from the old memory, and the history of it.
+	void forgetCode() {
+		Arrays.fill(codePages, false);
+		engine.reset();
+		if (journal != null)
+			journal.reset();
 	}
 	
 	// Bleh.
@@ -114,365 +240,301 @@ public class DCPU implements Runnable {
 	public void attachDevice(Hardware h) {
 		devices.add(h);
 	}
+	
+	// Listens to writes anywhere in memory. Prefer watch() with a range.
 	public void addListener(MemoryListener l) {
-		listeners.add(l);
+		watch(l, 0, MEMORY_SIZE);
 	}
 	
-	public Cell getRegister(Register r) {
-		return register[r.ordinal()];
+	// Reports writes to [start, start + length) to the listener. Ranges wrap around the end of memory.
+	public void watch(MemoryListener l, int start, int length) {
+		watches.add(new Watch(l, start, length, false));
+		rebuildWatchers();
 	}
 	
-	public void interrupt(char interruptMsg) {
-		interrupts[intEndPtr++] = interruptMsg;		
-		intEndPtr &= 255;
-		// TODO: Make it catch fire if intEndPtr == intProcessPtr, which
-		// means it came around and the queue is over 256 interrupts.
-	}
-	
-	private Cell handleArgument(int code, boolean isA) {
-		debugf("0x%s: ", Integer.toHexString(code));
-		if (code >= 0x0 && code <= 0x7) {
-			debug(Register.values()[code]);
-			return register[code];
-		} else if (code >= 0x8 && code <= 0xf) {
-			debugf("[%s]", Register.values()[code - 0x8]);
-			return memory[register[code - 0x8].value];
-		} else if (code >= 0x10 && code <= 0x17) {
-			debugf("[next word + %s]", Register.values()[code - 0x10]);
-			cycles++;
-			return memory[memory[PC.value++].value + register[code - 0x10].value];
-		} else if (code == 0x18) {
-			debug(isA ? "POP" : "PUSH");
-			return isA ? memory[SP.value++] : memory[--SP.value];
-		} else if (code == 0x19) {
-			debug("PEEK");
-			return memory[SP.value];
-		} else if (code == 0x1a) {
-			debug("PICK " + memory[PC.value].value);
-			cycles++;
-			return memory[SP.value + memory[PC.value++].value];
-		} else if (code == 0x1b) {
-			debug("SP");
-			return SP;
-		} else if (code == 0x1c) {
-			debug("PC");
-			return PC;
-		} else if (code == 0x1d) {
-			debug("EX");
-			return EX;
-		} else if (code == 0x1e) {
-			debug("[next word]");
-			cycles++;
-			return memory[memory[PC.value++].value];
-		} else if (code == 0x1f) {
-			debug("next word (literal)");
-			cycles++;
-			return new Cell(memory[PC.value++].value);
+	// Like watch(), but reports reads as well as writes.
+	public void watchReads(MemoryListener l, int start, int length) {
+		watches.add(new Watch(l, start, length, true));
+		rebuildWatchers();
+	}
+	
+	// Removes every range watched by the listener.
+	public void unwatch(MemoryListener l) {
+		for (int i = watches.size() - 1; i >= 0; i--) {
+			if (watches.get(i).listener == l)
+				watches.remove(i);
 		}
-		// Only should happen if argument is A.
-		if (!isA)
-			debugln("Error: Unknown argument 0x" + Integer.toHexString(code) + " in B.");
-		else
-			debug("literal: " + (code - 0x21));
-		return new Cell(code - 0x21);
-	}
-	
-	public void skipIf(boolean test) {
-		// All IF instructions take at least 2 cycles.
-		cycles += 2;
-		// And an extra cycle if the test fails.
-		if (!test)
-			cycles++;
-		skipping = test;
-	}
-	
-	private void processBasic(int opcode, Cell cellA, Cell cellB) {
-		int a = cellA.value;
-		int b = cellB.value;
-		int ex = 0;
-		
-		if ((opcode - 1) < Assembler.basicOps.length)
-			debugln(Assembler.basicOps[opcode - 1]);
-		
-		switch (opcode) {
-		case 0x1: // SET - sets b to a
-			cycles++;
-			b = a;
-			break;
-		case 0x2: // ADD - add a to b
-			cycles += 2;
-			ex = (b += a) > 0xffff ? 1 : 0;
-			break;
-		case 0x3: // SUB - subtract from b
-			cycles += 2;
-			ex = (b -= a) < 0 ? 0xffff : 0;
-			break;
-		case 0x4: // MUL - multiplies b by a
-			cycles += 2;
-			ex = (b *= a) >> 16 & 0xffff;
-			break;
-		case 0x5: // MLI - multiplies signed values
-			cycles += 2;
-			b = (short)a * (short)b;
-			ex = b >> 16 & 0xffff;
-			break;
-		case 0x6: // DIV divides b by a
-			cycles += 3;
-			if (a == 0) {
-				b = 0;
-				ex = 0;
-			} else {
-				ex = (b << 16) / a;
-				b /= a;
+		rebuildWatchers();
+	}
+	
+	private void rebuildWatchers() {
+		List<MemoryListener> all = new ArrayList<>();
+		List<List<MemoryListener>> writes = new ArrayList<>(), reads = new ArrayList<>();
+		for (int page = 0; page < 256; page++) {
+			writes.add(new ArrayList<MemoryListener>());
+			reads.add(new ArrayList<MemoryListener>());
+		}
+		for (Watch w : watches) {
+			addOnce(all, w.listener);
+			if (w.length <= 0)
+				continue;
+			int first = (w.start & 0xffff) >>> 8;
+			int last = ((w.start & 0xffff) + Math.min(w.length, MEMORY_SIZE) - 1) >>> 8;
+			for (int page = first; page <= last; page++) {
+				addOnce(writes.get(page & 0xff), w.listener);
+				if (w.reads)
+					addOnce(reads.get(page & 0xff), w.listener);
 			}
-			break;
-		case 0x7: // DVI - divides signed values
-			cycles += 3;
-			if (a == 0) {
-				b = 0;
-				ex = 0;
+		}
+		for (int page = 0; page < 256; page++) {
+			writeWatchers[page] = toArray(writes.get(page));
+			readWatchers[page] = toArray(reads.get(page));
+		}
+		watchingListeners = all.toArray(new MemoryListener[all.size()]);
+	}
+	
+	private static void addOnce(List<MemoryListener> list, MemoryListener l) {
+		if (!list.contains(l))
+			list.add(l);
+	}
+	
+	private static MemoryListener[] toArray(List<MemoryListener> list) {
+		return list.isEmpty() ? null : list.toArray(new MemoryListener[list.size()]);
+	}
+	
+	public char getRegister(Register r) {
+		return register[r.ordinal()];
+	}
+	
+	public void setRegister(Register r, int value) {
+		register[r.ordinal()] = (char)value;
+	}
+	
+	public char read(int addr) {
+		addr &= 0xffff;
+		MemoryListener[] watchers = readWatchers[addr >>> 8];
+		if (watchers != null) {
+			Metrics metrics = this.metrics;
+			long start = metrics != null ? System.nanoTime() : 0;
+			notifyGet(watchers, (char)addr, memory.get(addr));
+			if (metrics != null)
+				metrics.listened(System.nanoTime() - start);
+		}
+		return memory.get(addr);
+	}
+	
+	public void write(int addr, int value) {
+		addr &= 0xffff;
+		char old = memory.get(addr);
+		if (old == (char)value)
+			return;
+		if (journal != null)
+			journal.recordWrite(addr, old);
+		memory.set(addr, (char)value);
+		memoryChanges++;
+		if (codePages[addr >>> 8])
+			engine.invalidate(addr);
+		// Listeners only hear about actual changes.
+		MemoryListener[] watchers = writeWatchers[addr >>> 8];
+		if (watchers != null) {
+			if (batchNotifications) {
+				dirty.set(addr);
 			} else {
-				ex = ((short)b << 16) / (short)a;
-				b = (short)b / (short)a;
+				Metrics metrics = this.metrics;
+				long start = metrics != null ? System.nanoTime() : 0;
+				notifySet(watchers, (char)addr, (char)value);
+				if (metrics != null)
+					metrics.listened(System.nanoTime() - start);
 			}
-			break;
-		case 0x8: // MOD - (sets b to b % a)
-			cycles += 3;
-			b = (a == 0) ? 0 : b % a;
-			break;
-		case 0x9: // MDI - MOD with signed values
-			cycles += 3;
-			b = (a == 0) ? 0 : (short)b % (short)a;
-		case 0xa: // AND - sets b to b & a
-			cycles++;
-			b &= a;
-			break;
-		case 0xb: // BOR - sets b to b | a
-			cycles++;
-			b |= a;
-			break;
-		case 0xc: // XOR - sets b to b ^ a
-			cycles++;
-			b ^= a;
-			break;
-		case 0xd: // SHR - shifts b right by a (logical shift)
-			cycles++;
-			ex = b << 16 >> a;
-			b >>>= a;
-			break;
-		case 0xe: // ASR - shift b right by a (arithmetic shift)
-			cycles++;
-			ex = b << 16 >>> a;
-			b >>= a;
-			break;
-		case 0xf: // SHL - shifts b left by a
-			cycles++;
-			ex = b << a >> 16;
-			b = b << a;
-			break;
-		case 0x10: // IFB - performs next instruction if (b & a) != 0
-			skipIf((b & a) == 0);
-			break;
-		case 0x11: // IFC - performs next instruction if (b & a) == 0
-			skipIf((b & a) != 0);
-			break;
-		case 0x12: // IFE - performs next instruction if b == a
-			skipIf(b != a);
-			break;
-		case 0x13: // IFN - performs next instruction if b != a
-			skipIf(b == a);
-			break;
-		case 0x14: // IFG - performs next instruction if b > a
-			skipIf(b <= a);
-			break;
-		case 0x15: // IFA - IFG with signed values
-			skipIf((short)b <= (short)a);
-			break;
-		case 0x16: // IFL - performs next instruction if b < a
-			skipIf(b >= a);
-			break;
-		case 0x17: // IFU - IFL with signed values
-			skipIf((short)b >= (short)a); 
-			break;
-		case 0x1a: // ADX - sets b to b+a+EX
-			cycles += 3;
-			ex = (b += a + ex) > 0xffff ? 1 : 0;
-			break;
-		case 0x1b: // SBX - sets b to b-a+EX
-			cycles += 3;
-			ex = (b = b - a + ex) < 0 ? 0xffff : 0;
-			break;
-		case 0x1e: // STI - sets b to a, then increments I and J
-			cycles += 2;
-			b = a;
-			getRegister(Register.I).value++;
-			getRegister(Register.J).value++;
-			break;
-		case 0x1f: // STD - sets b to a, then decrements I and J
-			cycles += 2;
-			b = a;
-			getRegister(Register.I).value--;
-			getRegister(Register.J).value--;
-			break;	
-		default:
-			debugln("Error: Unimplemented basic instruction: 0x" + Integer.toHexString(opcode));
 		}
-		cellA.set(a);
-		cellB.set(b);
-		EX.set(ex);
 	}
-
-	private void processSpecial(int opcode, Cell cellA) {
-		int a = cellA.value;
-		
-		if (opcode > 0 && (opcode - 1) < Assembler.specialOps.length)
-			debugln(Assembler.specialOps[opcode - 1]);
-		
-		switch (opcode) {
-		case 0x0: // EXIT - custom code, makes the processor stop.
-			// This is nice because what to do at an empty instruction is undefined, and
-			// this provides a clean end for simple programs that don't loop forever.
-			debugln("EXIT");
-			running = false;
-			break;
-		case 0x1: // JSR - pushes the address of the next instruction to the stack, sets PC to a
-			cycles += 3;
-			memory[--SP.value].value = PC.value;
-			PC.value = (char)a;
-			break;
-		case 0x8: // INT - triggers software interrupt with message a
-			cycles += 4;
-			interrupt((char)a);
-			break;
-		case 0x9: // IAG - sets a to IA
-			cycles++;
-			a = IA.value;
-			break;
-		case 0xa: // IAS - sets IA to a
-			cycles++;
-			IA.set(a);
-			break;
-		case 0xb: // RFI - disables interrupt queueing, pops A and then PC from stack.
-			cycles += 3;
-			iaq = false;
-			getRegister(Register.A).set(memory[SP.value++].get());
-			PC.set(memory[SP.value++].get());
-			break;
-		case 0xc: // IAQ - if a is nonzero, interrupts are queued instead of triggered. otherwise they are triggered.
-			cycles += 2;
-			iaq = a == 0 ? false : true;
-			break;
-		case 0x10: // HWN - sets a to number of connected devices
-			cycles += 2;
-			a = devices.size();
-			break;
-		case 0x11: // HWQ - sets A, B, C, X, and Y to info about hardware a
-			cycles += 4;
-			if (a < 0 || a >= devices.size()) {
-				System.err.println("Error: Code attempted to query invalid hardware number: " + a);
-				break;
+	
+	// Delivers the writes batched up since the last flush. Called once per frame by run(),
+	// but anyone driving cycle() directly with batchNotifications on needs to call it too.
+	public void flushNotifications() {
+		if (dirty.isEmpty())
+			return;
+		Metrics metrics = this.metrics;
+		long start = metrics != null ? System.nanoTime() : 0;
+		for (MemoryListener listener : watchingListeners)
+			listener.onRangeDirty(dirty);
+		dirty.clear();
+		if (metrics != null)
+			metrics.listened(System.nanoTime() - start);
+	}
+	
+	// Copies length words of memory starting at addr into dest, without reporting the reads.
+	// Wraps around at the end of memory.
+	public void read(int addr, char[] dest, int offset, int length) {
+		addr &= 0xffff;
+		int first = Math.min(length, MEMORY_SIZE - addr);
+		memory.get(addr, dest, offset, first);
+		memory.get(0, dest, offset + first, length - first);
+	}
+	
+	// Copies length words from src into memory starting at addr. Listeners hear about all
+	// the changes at once, in one onRangeDirty() call (or at the next flush, when batching).
+	public void write(int addr, char[] src, int offset, int length) {
+		if (isWatched(addr, length) || holdsCode(addr, length)) {
+			boolean batch = batchNotifications;
+			batchNotifications = true;
+			for (int i = 0; i < length; i++)
+				write(addr + i, src[offset + i]);
+			batchNotifications = batch;
+			if (!batch)
+				flushNotifications();
+			return;
+		}
+		addr &= 0xffff;
+		if (journal != null) {
+			for (int i = 0; i < length; i++) {
+				char old = memory.get((addr + i) & 0xffff);
+				if (old != src[offset + i])
+					journal.recordWrite((addr + i) & 0xffff, old);
 			}
-			Hardware h = devices.get(a);
-			getRegister(Register.A).value = (char)h.id;
-			getRegister(Register.B).value = (char)(h.id >> 16);
-			getRegister(Register.C).value = (char)h.version;
-			getRegister(Register.X).value = (char)h.manufacturer;
-			getRegister(Register.Y).value = (char)(h.manufacturer >> 16);
-			break;
-		case 0x12: // HWI - send an interrupt to hardware a
-			cycles += 4;
-			if (a >= devices.size()) return;
-			Hardware device = devices.get(a);
-			// If running w/o GUI, a window is not created until a hardware interrupt is actually
-			// sent to the monitor or keyboard. Maybe add a public bool Hardware.requiresWindow?
-			if (commandLine && (device instanceof Monitor || device instanceof Keyboard))
-				setupPanel();
-			devices.get(a).interrupt();
-			break;
-		default:
-			debugln("Error: Unimplemented special instruction: 0x" + Integer.toHexString(opcode));
 		}
-		
-		cellA.set(a);
+		int first = Math.min(length, MEMORY_SIZE - addr);
+		memory.set(addr, src, offset, first);
+		memory.set(0, src, offset + first, length - first);
 	}
 	
-	@SuppressWarnings("unused")
-	public void cycle() {
-		if (debug && labels != null && labels.containsKey(PC.value)) {
-			System.err.println(labels.get(PC.value));
+	// Whether any page in [addr, addr + length) has write watches.
+	public boolean isWatched(int addr, int length) {
+		int first = (addr & 0xffff) >>> 8;
+		int last = ((addr & 0xffff) + Math.min(length, MEMORY_SIZE) - 1) >>> 8;
+		for (int page = first; page <= last; page++) {
+			if (writeWatchers[page & 0xff] != null)
+				return true;
 		}
-		
-		int instruction = memory[PC.value].value;
-		int opcode = 0;
-		int rawA = 0, rawB = -1;
-		if ((instruction & 0b11111) == 0) {
-			// Non-basic opcode. aaaaaaooooo00000
-			instruction >>= 5;
-			opcode = skipping ? 0 : instruction & 0b11111;
-			rawA = instruction >> 5 & 0b111111;
-		} else {
-			// Basic opcode. aaaaaabbbbbooooo
-			opcode = instruction & 0b11111;
-			rawA = instruction >> 10 & 0b111111;
-			rawB = instruction >>  5 & 0b11111;
+		return false;
+	}
+	
+	// Whether any page in [addr, addr + length) holds compiled code.
+	private boolean holdsCode(int addr, int length) {
+		int first = (addr & 0xffff) >>> 8;
+		int last = ((addr & 0xffff) + Math.min(length, MEMORY_SIZE) - 1) >>> 8;
+		for (int page = first; page <= last; page++) {
+			if (codePages[page & 0xff])
+				return true;
 		}
-				
-		if (skipping) {
-			PC.value++;
-	        if ((rawA >= 0x10 && rawA <= 0x17) || rawA == 0x1a || rawA == 0x1e || rawA == 0x1f)
-	            PC.value++;
-	        if ((rawB >= 0x10 && rawB <= 0x17) || rawB == 0x1a || rawB == 0x1e || rawB == 0x1f)
-	            PC.value++;
-			
-			skipping = false;
-			if (opcode >= 0x10 && opcode <= 0x17)
-				skipping = true;
-			return;
+		return false;
+	}
+	
+	private static void notifySet(MemoryListener[] watchers, char addr, char value) {
+		for (MemoryListener listener : watchers) {
+			if (listener.inMemoryRange(addr))
+				listener.onSet(addr, value);
 		}
-		
-		if (IA.value > 0 && !iaq && intCurPtr != intEndPtr) {
-			iaq = true;
-			memory[--SP.value].set(PC.value);
-			memory[--SP.value].set(getRegister(Register.A).value);
-			PC.value = IA.value;
-			getRegister(Register.A).value = interrupts[intCurPtr++];
-			intCurPtr &= 255;
-			
-			// Maybe this should be moved to a parseInstruction() method.
-			instruction = memory[PC.value].value;
-			opcode = 0;
-			rawA = 0;
-			rawB = -1;
-			if ((instruction & 0b11111) == 0) {
-				// Non-basic opcode. aaaaaaooooo00000
-				instruction >>= 5;
-				opcode = skipping ? 0 : instruction & 0b11111;
-				rawA = instruction >> 5 & 0b111111;
-			} else {
-				// Basic opcode. aaaaaabbbbbooooo
-				opcode = instruction & 0b11111;
-				rawA = instruction >> 10 & 0b111111;
-				rawB = instruction >>  5 & 0b11111;
-			}
+	}
+	
+	private static void notifyGet(MemoryListener[] watchers, char addr, char value) {
+		for (MemoryListener listener : watchers) {
+			if (listener.inMemoryRange(addr))
+				listener.onGet(addr, value);
 		}
-		
-		PC.value++;
-
-		debug("A: ");
-		Cell a = handleArgument(rawA, true), b = null;
-		debugln(" = " + (int)a.value);
-		if (rawB != -1) {
-			debug("B: ");
-			b = handleArgument(rawB, false);
-			debugln(" = " + (int)b.value);
+	}
+	
+	// Whether the next step would enter the interrupt handler.
+	boolean interruptPending() {
+		return IA != 0 && !iaq && !interrupts.isEmpty();
+	}
+	
+	// Enters the interrupt handler if an interrupt is waiting and IA is set. Returns whether it did.
+	boolean triggerInterrupt() {
+		if (IA == 0 || iaq)
+			return false;
+		int msg = interrupts.poll();
+		if (msg < 0)
+			return false;
+		iaq = true;
+		write(--SP, PC);
+		write(--SP, getRegister(Register.A));
+		PC = IA;
+		setRegister(Register.A, msg);
+		return true;
+	}
+	
+	// HWQ - sets A, B, C, X, and Y to info about hardware index
+	void queryDevice(int index) {
+		if (index < 0 || index >= devices.size()) {
+			System.err.println("Error: Code attempted to query invalid hardware number: " + index);
+			return;
+		}
+		Hardware h = devices.get(index);
+		setRegister(Register.A, h.id);
+		setRegister(Register.B, h.id >> 16);
+		setRegister(Register.C, h.version);
+		setRegister(Register.X, h.manufacturer);
+		setRegister(Register.Y, h.manufacturer >> 16);
+	}
+	
+	// HWI - sends an interrupt to hardware index. Returns false if there's no such device.
+	boolean interruptDevice(int index) {
+		if (index >= devices.size())
+			return false;
+		Hardware device = devices.get(index);
+		// If running w/o GUI, a window is not created until a hardware interrupt is actually
+		// sent to the monitor or keyboard. Maybe add a public bool Hardware.requiresWindow?
+		if (commandLine && (device instanceof Monitor || device instanceof Keyboard))
+			setupPanel();
+		device.interrupt();
+		return true;
+	}
+	
+	// Queues an interrupt. Safe to call from any thread.
+	public void interrupt(char interruptMsg) {
+		if (!interrupts.offer(interruptMsg))
+			catchFire();
+		wake();
+	}
+	
+	// What the spec says happens when the interrupt queue overflows. The message that
+	// didn't fit is lost and the CPU stops at the end of its slice, until clear().
+	private void catchFire() {
+		if (onFire)
+			return;
+		onFire = true;
+		System.err.println("Error: More than " + InterruptQueue.CAPACITY + " interrupts queued. The DCPU is on fire.");
+	}
+	
+	// Cuts short the wait after an idle frame, so something that just came in gets handled.
+	void wake() {
+		Thread waiting = parked;
+		if (waiting != null) {
+			woken = true;
+			LockSupport.unpark(waiting);
 		}
-		
-		if (b != null)
-			processBasic(opcode, a, b);
-		else
-			processSpecial(opcode, a);
-		
-		instructionCount++;
+	}
+	
+	// Cycles run since the CPU started.
+	public long elapsedCycles() {
+		return cycleBase + cycles;
+	}
+	
+	// The counters as of the end of the last slice (or step). Safe to call from any thread.
+	public long publishedInstructions() {
+		return publishedInstructions;
+	}
+	
+	public long publishedCycles() {
+		return publishedCycles;
+	}
+	
+	private void publish() {
+		publishedInstructions = instructionCount;
+		publishedCycles = elapsedCycles();
+	}
+	
+	public void setEngine(Engine engine) {
+		// The old engine stops hearing about writes, so it can't keep anything compiled.
+		this.engine.reset();
+		Arrays.fill(codePages, false);
+		this.engine = engine;
+	}
+	
+	// Executes a single instruction.
+	public void cycle() {
+		engine.step();
 	}
 	
 	public void setupPanel() {
@@ -491,48 +553,278 @@ public class DCPU implements Runnable {
 		        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		        frame.setVisible(true);
 		        
-		        while (running) {
+		        while (isRunning()) {
 		        	panel.tick();
 		        }
 			}
 		}.start();
 	}
 	
+	// Runs the CPU in real time (see governor) until the program exits or stop() is called.
 	public void run() {
 		running = true;
-		int fps = 60;
-		int hz = 100_000;
-		int cyclesPerFrame = hz / fps;
-		int nsPerFrame = 1000_000_000 / fps;
-		long time, diff = 0;
-		while (running) {
-			time = System.nanoTime();
-			
-			while (cycles < cyclesPerFrame)
-				cycle();
-			cycles -= cyclesPerFrame;
-			
-			for (Hardware device : devices)
-				device.tick();
+		// start() has already cleared any old stop request, and a new one is for this run.
+		if (runner != Thread.currentThread())
+			stopRequested = false;
+		runner = Thread.currentThread();
+		try {
+			governor.start(System.nanoTime(), elapsedCycles());
+			while (running && !stopRequested && !onFire) {
+				if (pauseRequested) {
+					waitWhilePaused();
+					governor.start(System.nanoTime(), elapsedCycles());
+					continue;
+				}
+				
+				// hz can change between frames.
+				int cyclesPerFrame = frameCycles();
+				boolean idle = runSlice(cyclesPerFrame);
+				// EXIT, a pause or a stop can cut a frame short.
+				if (cycles < cyclesPerFrame)
+					continue;
+				endFrame(cyclesPerFrame);
+				long now = System.nanoTime();
+				if (governor.shouldRender(now))
+					flushNotifications();
+				
+				long wait = governor.endFrame(now, elapsedCycles());
+				if (wait > 0) {
+					long deadline = now + wait;
+					woken = false;
+					if (idle)
+						parked = Thread.currentThread();
+					// An interrupt can cut the wait short; the governor makes up for it next frame.
+					while (!woken && (wait = deadline - System.nanoTime()) > 0)
+						LockSupport.parkNanos(this, wait);
+					parked = null;
+				}
+			}
+			flushNotifications();
+		} finally {
+			finished();
+		}
+	}
+	
+	// Starts run() on a thread of its own, and returns the thread.
+	public Thread start() {
+		stopRequested = false;
+		Thread thread = new Thread(this, "DCPU");
+		runner = thread;
+		thread.start();
+		return thread;
+	}
+	
+	// Runs the CPU for n cycles on the calling thread, as fast as it goes, firing device
+	// events on the way. Returns the cycles run, which can be a few more than n since an
+	// instruction isn't split, or fewer if the program exits or someone calls pause() or stop().
+	// Embedders can call this from their own scheduler, one slice at a time.
+	public long runCycles(long n) {
+		long start = elapsedCycles(), target = start + n;
+		running = true;
+		stopRequested = false;
+		runner = Thread.currentThread();
+		try {
+			while (running && !controlRequested()) {
+				int cyclesPerFrame = frameCycles();
+				if (cycles >= cyclesPerFrame) {
+					endFrame(cyclesPerFrame);
+					continue;
+				}
+				if (elapsedCycles() >= target)
+					break;
+				runSlice((int)Math.min(cyclesPerFrame, target - cycleBase));
+			}
+		} finally {
+			finished();
+		}
+		return elapsedCycles() - start;
+	}
+	
+	// Something runUntil() waits for, checked after every instruction.
+	public interface Condition {
+		boolean reached(DCPU cpu);
+	}
+	
+	// Runs the CPU on the calling thread until condition holds, or for at most maxCycles.
+	// The condition isn't checked before the first instruction, so a debugger can carry on
+	// from a breakpoint it's sitting on. Returns whether the condition was met.
+	public boolean runUntil(Condition condition, long maxCycles) {
+		long target = elapsedCycles() + maxCycles;
+		running = true;
+		stopRequested = false;
+		runner = Thread.currentThread();
+		try {
+			while (running && !controlRequested()) {
+				int cyclesPerFrame = frameCycles();
+				if (cycles >= cyclesPerFrame) {
+					endFrame(cyclesPerFrame);
+					continue;
+				}
+				if (elapsedCycles() >= target)
+					break;
+				scheduler.runDue();
+				int until = (int)Math.min(Math.min(cyclesPerFrame, target - cycleBase), scheduler.nextEvent() - cycleBase);
+				until = Math.min(until, cycles + IDLE_CHECK);
+				if (journal != null)
+					journal.checkpoint();
+				// An instruction at a time, so the condition sees every one.
+				while (running && cycles < until) {
+					engine.step();
+					if (!skipping && condition.reached(this))
+						return true;
+				}
+				publish();
+			}
+			return false;
+		} finally {
+			finished();
+		}
+	}
+	
+	// Runs the CPU until it gets to the instruction at pc, or for at most maxCycles.
+	public boolean runUntil(final char pc, long maxCycles) {
+		return runUntil(new Condition() {
+			@Override
+			public boolean reached(DCPU cpu) {
+				return cpu.PC == pc;
+			}
+		}, maxCycles);
+	}
+	
+	// Executes one instruction on the calling thread, after firing any device events that
+	// are due. Works while paused, for single-stepping in a debugger.
+	public void step() {
+		int cyclesPerFrame = frameCycles();
+		if (cycles >= cyclesPerFrame)
+			endFrame(cyclesPerFrame);
+		scheduler.runDue();
+		if (journal != null)
+			journal.checkpoint();
+		running = true;
+		engine.step();
+		publish();
+	}
+	
+	// Asks whatever is running the CPU to stop at the end of its slice. run() waits for
+	// resume(); runCycles() and runUntil() return.
+	public void pause() {
+		pauseRequested = true;
+		wake();
+	}
+	
+	public void resume() {
+		pauseRequested = false;
+		wake();
+	}
+	
+	// Stops whatever is running the CPU at the end of its slice, and waits for it to return
+	// unless it's the caller.
+	public void stop() {
+		stopRequested = true;
+		wake();
+		if (runner == Thread.currentThread())
+			return;
+		synchronized (this) {
 			try {
-				diff += nsPerFrame - (System.nanoTime() - time);
-				if (diff > 1000_000)
-					Thread.sleep(diff / 1000_000);
-				diff %= 1000_000;
+				while (runner != null)
+					wait();
 			} catch (InterruptedException e) {
-				e.printStackTrace();
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	public boolean isPaused() {
+		return pauseRequested;
+	}
+	
+	// Whether run(), runCycles() or runUntil() is going. Safe to call from any thread.
+	public boolean isRunning() {
+		return runner != null;
+	}
+	
+	// Whether the program stopped itself with EXIT in the last step or run. Call it from
+	// the thread running the CPU, or once run() has returned.
+	public boolean hasExited() {
+		return !running;
+	}
+	
+	private synchronized void finished() {
+		publish();
+		runner = null;
+		notifyAll();
+	}
+	
+	private boolean controlRequested() {
+		return stopRequested || pauseRequested || onFire;
+	}
+	
+	// Cycles in the current frame at the current clock rate. Frames take turns at the
+	// remainder of hz / FPS, so a second of them comes to hz exactly, and below FPS Hz
+	// some frames get no cycles at all.
+	private int frameCycles() {
+		long hz = this.hz;
+		return (int)((frames + 1) * hz / Governor.FPS - frames * hz / Governor.FPS);
+	}
+	
+	// Runs up to untilCycles, no further than the end of the frame, firing device events
+	// as they come due. Control requests are looked at every IDLE_CHECK cycles. Returns
+	// whether the program was idling when it stopped.
+	private boolean runSlice(int untilCycles) {
+		// Run up to each device event in turn. Nothing happens in a stretch spent
+		// waiting for one, so the IdleDetector can skip it. Programs settle into a
+		// wait at any point, so it gets another look every IDLE_CHECK cycles.
+		boolean idle = false;
+		while (running && cycles < untilCycles && !controlRequested()) {
+			scheduler.runDue();
+			int until = (int)Math.min(untilCycles, scheduler.nextEvent() - cycleBase);
+			while (running && cycles < until && !controlRequested()) {
+				if (journal != null)
+					journal.checkpoint();
+				// A trace or profile wants every instruction, so nothing is skipped then.
+				idle = idleDetector != null && trace == null && profiler == null && idleDetector.skip(until);
+				engine.run(Math.min(until, cycles + IDLE_CHECK));
+			}
+		}
+		publish();
+		return idle;
+	}
+	
+	// Starts the next frame's cycle count and ticks the devices.
+	private void endFrame(int cyclesPerFrame) {
+		// cycleBase first, so elapsedCycles() never goes backwards in between.
+		cycleBase += cyclesPerFrame;
+		cycles -= cyclesPerFrame;
+		frames++;
+		Metrics metrics = this.metrics;
+		for (Hardware device : devices) {
+			if (metrics == null) {
+				device.tick();
+			} else {
+				long start = System.nanoTime();
+				device.tick();
+				metrics.ticked(device, System.nanoTime() - start);
 			}
 		}
 	}
 	
+	// Parks the thread in run() until resume() or stop().
+	private void waitWhilePaused() {
+		flushNotifications();
+		parked = Thread.currentThread();
+		while (pauseRequested && !stopRequested)
+			LockSupport.park(this);
+		parked = null;
+	}
+	
 	public String dump() {
 		String s = "";
 		for (Register r : Register.values())
-			s += r.toString() + ": " + Integer.toHexString(getRegister(r).value) + "\n";
+			s += r.toString() + ": " + Integer.toHexString(getRegister(r)) + "\n";
 		return s;
 	}
 	
-	public static void main(String args[]) {
+	public static void main(String args[]) throws IOException {
 		Scanner s = new Scanner(System.in);
 		List<Character> code = new ArrayList<>();
 		while (s.hasNextInt(16))
@@ -540,14 +832,89 @@ public class DCPU implements Runnable {
 		s.close();
 		
 		DCPU cpu = new DCPU(code);
+		Path restore = null, save = null, trace = null, profile = null, samples = null;
+		SamplingProfiler sampler = null;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-jit":
+				cpu.setEngine(new JitEngine(cpu));
+				break;
+			case "-turbo":
+				cpu.governor.turbo = true;
+				break;
+			case "-hz":
+				cpu.hz = Integer.parseInt(args[++i]);
+				break;
+			case "-speed": // Percentage of real time
+				cpu.governor.percent = Integer.parseInt(args[++i]);
+				break;
+			case "-restore": // Start from a snapshot instead of the program
+				restore = Paths.get(args[++i]);
+				break;
+			case "-save": // Snapshot the machine once it stops
+				save = Paths.get(args[++i]);
+				break;
+			case "-trace": // Record every instruction; gzipped if the name ends in .gz
+				trace = Paths.get(args[++i]);
+				break;
+			case "-profile": // Write a profile, and its call paths to <file>.folded for flame graphs
+				profile = Paths.get(args[++i]);
+				cpu.profiler = new Profiler();
+				break;
+			case "-metrics": // Publish metrics over JMX and print them every <seconds>
+				cpu.metrics = new Metrics(cpu, "main");
+				cpu.metrics.addReporter(Metrics.printTo(System.err));
+				cpu.metrics.start(Integer.parseInt(args[++i]), TimeUnit.SECONDS);
+				break;
+			case "-sample": // Sample where the program spends its time, cheaply, and write a report
+				samples = Paths.get(args[++i]);
+				sampler = new SamplingProfiler(cpu);
+				break;
+			default:
+				System.err.println("Unknown option " + args[i]);
+			}
+		}
 		Monitor monitor = new Monitor(cpu);
 		Keyboard keyboard = new Keyboard(cpu);
 		new Clock(cpu);
+		if (restore != null)
+			Snapshot.restore(cpu, restore);
+		if (trace != null)
+			cpu.trace = new TraceRecorder(trace);
+		if (sampler != null)
+			sampler.start();
+		if (cpu.metrics != null) {
+			try {
+				cpu.metrics.register();
+			} catch (JMException e) {
+				System.err.println("Error: Couldn't publish metrics over JMX: " + e);
+			}
+		}
 		
 		cpu.panel = new MonitorPanel(monitor);
 		cpu.panel.addKeyListener(keyboard);
 		cpu.commandLine = true;
+		cpu.batchNotifications = true;
 		cpu.run();
+		if (cpu.trace != null) {
+			cpu.trace.close();
+			cpu.trace = null;
+		}
+		if (profile != null) {
+			try (PrintStream out = new PrintStream(profile.toFile())) {
+				cpu.profiler.report(cpu, out, 30);
+			}
+			try (PrintStream out = new PrintStream(profile.toString() + ".folded")) {
+				cpu.profiler.writeCollapsed(cpu, out);
+			}
+		}
+		if (samples != null) {
+			try (PrintStream out = new PrintStream(samples.toFile())) {
+				sampler.report(out, 30);
+			}
+		}
 		System.out.print(cpu.dump());
+		if (save != null)
+			Snapshot.save(cpu, save);
 	}
 }
\ No newline at end of file
@@ -26,7 +26,6 @@ public class DCPULauncher extends JPanel implements ActionListener, Runnable {
 	JTextArea codeEntry;
 	
 	JLabel[][] registers;
-    Cell special[];
 	JLabel[][] specialLabels;
 	JLabel instructionLabel, cycleLabel;
 
@@ -35,6 +34,8 @@ public class DCPULauncher extends JPanel implements ActionListener, Runnable {
 	public DCPULauncher() {
 		super();
 		cpu = new DCPU();
+		cpu.batchNotifications = true;
+		cpu.journal = new Journal(cpu);
 		keyboard = new Keyboard(cpu);
 		monitor = new Monitor(cpu);
 		clock = new Clock(cpu);
@@ -71,6 +72,16 @@ public class DCPULauncher extends JPanel implements ActionListener, Runnable {
         stepButton.addActionListener(this);
         buttonBox.add(stepButton);
         
+        JButton backButton = new JButton("Back");
+        backButton.setActionCommand("back");
+        backButton.addActionListener(this);
+        buttonBox.add(backButton);
+        
+        JButton backToWriteButton = new JButton("Back to write");
+        backToWriteButton.setActionCommand("backToWrite");
+        backToWriteButton.addActionListener(this);
+        buttonBox.add(backToWriteButton);
+        
         JButton stopButton = new JButton("Stop");
         stopButton.setActionCommand("stop");
         stopButton.addActionListener(this);
@@ -96,10 +107,6 @@ public class DCPULauncher extends JPanel implements ActionListener, Runnable {
         }
         
         String specialNames[] = {"SP", "PC", "EX"};
-        special = new Cell[3];
-        special[0] = cpu.SP;
-        special[1] = cpu.PC;
-        special[2] = cpu.EX;
         specialLabels = new JLabel[specialNames.length][];
 
         for (int i = 0; i < specialNames.length; i++) {
@@ -139,11 +146,11 @@ public class DCPULauncher extends JPanel implements ActionListener, Runnable {
 	public void actionPerformed(ActionEvent e) {
 		String command = e.getActionCommand();
 		if (command.equals("run")) {
-			cpu.running = false;
+			cpu.stop();
 			cpu.clear(assembler.assemble(codeEntry.getText()));
 			cpu.labels = reverseLabels();
 			
-			new Thread(cpu).start();
+			cpu.start();
 			new Thread(this).start();
 		} else if (command.equals("step")) {
 			if (!started) {
@@ -151,13 +158,32 @@ public class DCPULauncher extends JPanel implements ActionListener, Runnable {
 				cpu.labels = reverseLabels();
 				
 				started = true;
-				cpu.running = true;
 			}
-			cpu.cycle();
-			display.tick();
-			tick();
+			cpu.step();
+			showState();
+		} else if (command.equals("back") && started && !cpu.isRunning()) {
+			if (!cpu.journal.stepBack())
+				JOptionPane.showMessageDialog(this, "Can't go back any further.");
+			showState();
+		} else if (command.equals("backToWrite") && started && !cpu.isRunning()) {
+			String address = JOptionPane.showInputDialog(this, "Go back to the last write to address (hex):");
+			if (address == null)
+				return;
+			try {
+				if (!cpu.journal.rewindToWrite(Integer.parseInt(address.trim().replaceFirst("^0[xX]", ""), 16)))
+					JOptionPane.showMessageDialog(this, "No write to " + address + " in the journal.");
+			} catch (NumberFormatException e2) {
+				JOptionPane.showMessageDialog(this, address + " isn't a hex address.");
+			}
+			showState();
 		} else if (command.equals("stop"))
-			cpu.running = false;
+			cpu.stop();
+	}
+	
+	private void showState() {
+		cpu.flushNotifications();
+		display.tick();
+		tick();
 	}
 	
 	private Map<Integer, String> reverseLabels() {
@@ -170,7 +196,7 @@ public class DCPULauncher extends JPanel implements ActionListener, Runnable {
 	
 	public void run() {
 		started = true;
-		while (cpu.running) {
+		while (cpu.isRunning()) {
 			display.tick();
 			tick();
 		}
@@ -180,12 +206,13 @@ public class DCPULauncher extends JPanel implements ActionListener, Runnable {
 
 	public void tick() {
     	for (Register r : Register.values())
-    		setLabels(registers[r.ordinal()], cpu.getRegister(r).value);
+    		setLabels(registers[r.ordinal()], cpu.getRegister(r));
     	
-    	for (int i = 0; i < special.length; i++)
-    		setLabels(specialLabels[i], special[i].value);
+    	setLabels(specialLabels[0], cpu.SP);
+    	setLabels(specialLabels[1], cpu.PC);
+    	setLabels(specialLabels[2], cpu.EX);
     	
-    	instructionLabel.setText(Integer.toString(cpu.instructionCount));
+    	instructionLabel.setText(Long.toString(cpu.instructionCount));
     	cycleLabel.setText(Integer.toString(cpu.cycles));
 	}
 	
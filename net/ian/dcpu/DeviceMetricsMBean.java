@@ -0,0 +1,8 @@
+package net.ian.dcpu;
+
+// What JMX sees of Metrics.Device.
+public interface DeviceMetricsMBean {
+	String getName();
+	long getTicks();
+	double getTickMillis();
+}
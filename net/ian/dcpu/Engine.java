@@ -0,0 +1,33 @@
+package net.ian.dcpu;
+
+// Executes instructions for a DCPU. All machine state lives in the DCPU, so engines
+// can be swapped between steps (DCPU.setEngine()) and compared against each other.
+public abstract class Engine {
+	protected final DCPU cpu;
+	
+	protected Engine(DCPU cpu) {
+		this.cpu = cpu;
+	}
+	
+	// Executes one instruction, entering an interrupt handler first if one is due.
+	// Stepping over the instruction after a failed IF counts as a step of its own.
+	public abstract void step();
+	
+	// Steps until cpu.cycles reaches untilCycles, or the CPU stops running.
+	public void run(int untilCycles) {
+		while (cpu.cycles < untilCycles && cpu.running)
+			step();
+	}
+	
+	// A new engine of the same kind for cpu, for DCPU.fork(), when cpu's memory is still the
+	// same as this one's. Anything derived from the code can come along with it.
+	public abstract Engine copyFor(DCPU cpu);
+	
+	// Called when memory at addr changes on a page marked in cpu.codePages.
+	void invalidate(int addr) {
+	}
+	
+	// Forgets anything derived from memory. Called when memory is replaced wholesale.
+	void reset() {
+	}
+}
@@ -0,0 +1,301 @@
+package net.ian.dcpu;
+
+// An interpreter that behaves exactly like the reference Interpreter, quirks included
+// (every basic instruction sets EX, operand a is written back, ...), but allocates
+// nothing per instruction. Operands resolve to int locations, dispatch is a dense
+// switch on the predecoded opcode, and the only tracing and profiling are DCPU.trace and DCPU.profiler.
+public class FastInterpreter extends Engine {
+	// Operand locations: memory addresses, then the registers, SP, PC and EX, then literals
+	// with the value in the low 16 bits.
+	private static final int REGISTER = DCPU.MEMORY_SIZE;
+	private static final int SP = REGISTER + 8;
+	private static final int PC = SP + 1;
+	private static final int EX = PC + 1;
+	private static final int LITERAL = 0x20000;
+
+	private static final int I = DCPU.Register.I.ordinal();
+	private static final int J = DCPU.Register.J.ordinal();
+
+	private final Memory memory;
+	private final char[] register;
+
+	public FastInterpreter(DCPU cpu) {
+		super(cpu);
+		memory = cpu.memory;
+		register = cpu.register;
+	}
+
+	@Override
+	public Engine copyFor(DCPU cpu) {
+		return new FastInterpreter(cpu);
+	}
+
+	@Override
+	public void step() {
+		DCPU cpu = this.cpu;
+		int insn = Instruction.decode(memory.get(cpu.PC));
+		if (cpu.skipping) {
+			if (cpu.trace != null)
+				cpu.trace.record(cpu, TraceRecorder.SKIPPED);
+			cpu.PC += Instruction.length(insn);
+			cpu.skipping = Instruction.isConditional(insn);
+			return;
+		}
+
+		boolean interrupted = cpu.IA != 0 && cpu.triggerInterrupt();
+		if (interrupted)
+			insn = Instruction.decode(memory.get(cpu.PC));
+		if (cpu.trace != null)
+			cpu.trace.record(cpu, interrupted ? TraceRecorder.INTERRUPT : 0);
+		Profiler profiler = cpu.profiler;
+		if (profiler != null)
+			profiler.before(cpu, interrupted);
+
+		cpu.PC++;
+		cpu.cycles += Instruction.cycles(insn);
+		cpu.instructionCount++;
+		if (Instruction.isSpecial(insn))
+			special(Instruction.opcode(insn), Instruction.a(insn));
+		else
+			basic(Instruction.opcode(insn), Instruction.a(insn), Instruction.b(insn));
+		if (profiler != null)
+			profiler.after(cpu, insn);
+	}
+
+	private int resolve(int mode, boolean isA) {
+		DCPU cpu = this.cpu;
+		switch (mode) {
+		case 0x00: case 0x01: case 0x02: case 0x03:
+		case 0x04: case 0x05: case 0x06: case 0x07:
+			return REGISTER + mode;
+		case 0x08: case 0x09: case 0x0a: case 0x0b:
+		case 0x0c: case 0x0d: case 0x0e: case 0x0f:
+			return register[mode - 0x08];
+		case 0x10: case 0x11: case 0x12: case 0x13:
+		case 0x14: case 0x15: case 0x16: case 0x17:
+			return (memory.get(cpu.PC++) + register[mode - 0x10]) & 0xffff;
+		case 0x18: // POP / PUSH
+			return isA ? cpu.SP++ : --cpu.SP;
+		case 0x19: // PEEK
+			return cpu.SP;
+		case 0x1a: // PICK n
+			return (cpu.SP + memory.get(cpu.PC++)) & 0xffff;
+		case 0x1b:
+			return SP;
+		case 0x1c:
+			return PC;
+		case 0x1d:
+			return EX;
+		case 0x1e: // [next word]
+			return memory.get(cpu.PC++);
+		case 0x1f: // next word (literal)
+			return LITERAL | memory.get(cpu.PC++);
+		default: // Short literals, -1 to 30.
+			return LITERAL | ((mode - 0x21) & 0xffff);
+		}
+	}
+
+	private int load(int loc) {
+		if (loc < REGISTER)
+			return cpu.read(loc);
+		if (loc < SP)
+			return register[loc - REGISTER];
+		if (loc >= LITERAL)
+			return loc & 0xffff;
+		return loc == SP ? cpu.SP : loc == PC ? cpu.PC : cpu.EX;
+	}
+
+	private void store(int loc, int value) {
+		if (loc < REGISTER)
+			cpu.write(loc, value);
+		else if (loc < SP)
+			register[loc - REGISTER] = (char)value;
+		else if (loc == SP)
+			cpu.SP = (char)value;
+		else if (loc == PC)
+			cpu.PC = (char)value;
+		else if (loc == EX)
+			cpu.EX = (char)value;
+		// Writes to literals are ignored.
+	}
+
+	private void skip(boolean skip) {
+		// IFs cost an extra cycle when they don't skip.
+		if (!skip)
+			cpu.cycles++;
+		cpu.skipping = skip;
+	}
+
+	private void basic(int opcode, int modeA, int modeB) {
+		int locA = resolve(modeA, true);
+		int locB = resolve(modeB, false);
+		int a = load(locA);
+		int b = load(locB);
+		int ex = 0;
+
+		switch (opcode) {
+		case 0x01: // SET
+			b = a;
+			break;
+		case 0x02: // ADD
+			ex = (b += a) > 0xffff ? 1 : 0;
+			break;
+		case 0x03: // SUB
+			ex = (b -= a) < 0 ? 0xffff : 0;
+			break;
+		case 0x04: // MUL
+			ex = (b *= a) >> 16 & 0xffff;
+			break;
+		case 0x05: // MLI
+			b = (short)a * (short)b;
+			ex = b >> 16 & 0xffff;
+			break;
+		case 0x06: // DIV
+			if (a == 0) {
+				b = 0;
+			} else {
+				ex = (b << 16) / a;
+				b /= a;
+			}
+			break;
+		case 0x07: // DVI
+			if (a == 0) {
+				b = 0;
+			} else {
+				ex = ((short)b << 16) / (short)a;
+				b = (short)b / (short)a;
+			}
+			break;
+		case 0x08: // MOD
+			b = (a == 0) ? 0 : b % a;
+			break;
+		case 0x09: // MDI, which falls through into AND like the reference interpreter.
+			b = ((a == 0) ? 0 : (short)b % (short)a) & a;
+			break;
+		case 0x0a: // AND
+			b &= a;
+			break;
+		case 0x0b: // BOR
+			b |= a;
+			break;
+		case 0x0c: // XOR
+			b ^= a;
+			break;
+		case 0x0d: // SHR
+			ex = b << 16 >> a;
+			b >>>= a;
+			break;
+		case 0x0e: // ASR
+			ex = b << 16 >>> a;
+			b >>= a;
+			break;
+		case 0x0f: // SHL
+			ex = b << a >> 16;
+			b = b << a;
+			break;
+		// IFs leave both operands alone, so there's nothing to write back except EX.
+		case 0x10: // IFB
+			skip((b & a) == 0);
+			cpu.EX = 0;
+			return;
+		case 0x11: // IFC
+			skip((b & a) != 0);
+			cpu.EX = 0;
+			return;
+		case 0x12: // IFE
+			skip(b != a);
+			cpu.EX = 0;
+			return;
+		case 0x13: // IFN
+			skip(b == a);
+			cpu.EX = 0;
+			return;
+		case 0x14: // IFG
+			skip(b <= a);
+			cpu.EX = 0;
+			return;
+		case 0x15: // IFA
+			skip((short)b <= (short)a);
+			cpu.EX = 0;
+			return;
+		case 0x16: // IFL
+			skip(b >= a);
+			cpu.EX = 0;
+			return;
+		case 0x17: // IFU
+			skip((short)b >= (short)a);
+			cpu.EX = 0;
+			return;
+		case 0x1a: // ADX
+			ex = (b += a) > 0xffff ? 1 : 0;
+			break;
+		case 0x1b: // SBX
+			ex = (b -= a) < 0 ? 0xffff : 0;
+			break;
+		case 0x1e: // STI
+			b = a;
+			register[I]++;
+			register[J]++;
+			// Writing a back undoes the increment when a is I or J itself.
+			if (locA == REGISTER + I || locA == REGISTER + J)
+				register[locA - REGISTER] = (char)a;
+			break;
+		case 0x1f: // STD
+			b = a;
+			register[I]--;
+			register[J]--;
+			if (locA == REGISTER + I || locA == REGISTER + J)
+				register[locA - REGISTER] = (char)a;
+			break;
+		}
+
+		store(locB, b);
+		cpu.EX = (char)ex;
+	}
+
+	private void special(int opcode, int modeA) {
+		DCPU cpu = this.cpu;
+		int locA = resolve(modeA, true);
+		int a = load(locA);
+
+		switch (opcode) {
+		case 0x00: // EXIT
+			cpu.running = false;
+			break;
+		case 0x01: // JSR
+			cpu.write(--cpu.SP, cpu.PC);
+			cpu.PC = (char)a;
+			break;
+		case 0x08: // INT
+			cpu.interrupt((char)a);
+			break;
+		case 0x09: // IAG
+			a = cpu.IA;
+			break;
+		case 0x0a: // IAS
+			cpu.IA = (char)a;
+			break;
+		case 0x0b: // RFI
+			cpu.iaq = false;
+			register[0] = cpu.read(cpu.SP++);
+			cpu.PC = cpu.read(cpu.SP++);
+			break;
+		case 0x0c: // IAQ
+			cpu.iaq = a != 0;
+			break;
+		case 0x10: // HWN
+			a = cpu.devices.size();
+			break;
+		case 0x11: // HWQ
+			cpu.queryDevice(a);
+			break;
+		case 0x12: // HWI
+			if (!cpu.interruptDevice(a))
+				return;
+			break;
+		}
+
+		// Special instructions are rare and can change nearly anything, so a is always written back.
+		store(locA, a);
+	}
+}
@@ -0,0 +1,76 @@
+package net.ian.dcpu;
+
+// Paces DCPU.run(): real time at whatever DCPU.hz is, some percentage of real time, or
+// turbo (as fast as the host goes). Frames are due at fixed points counted from the
+// start, so oversleeping one frame is made up in the next rather than adding up. A host
+// that falls behind catches up by skipping monitor updates, not by slowing the CPU, and
+// gives up catching up once it's more than MAX_LAG behind.
+public class Governor {
+	public static final int FPS = 60;
+	private static final long SECOND = 1000_000_000L;
+	private static final long MAX_LAG = SECOND / 4;
+	// How often achievedHz is worked out.
+	private static final long MEASURE_PERIOD = SECOND / 2;
+
+	// Speed as a percentage of real time. Ignored in turbo mode.
+	public volatile int percent = 100;
+	// Run as fast as possible, for batch jobs.
+	public volatile boolean turbo;
+
+	// How fast the CPU actually ran lately, in cycles per second of wall time.
+	public volatile double achievedHz;
+	// How far behind schedule the last frame ended, in nanoseconds.
+	public volatile long lag;
+	// Monitor updates dropped to catch up.
+	public volatile long framesSkipped;
+
+	private long deadline, lastRender;
+	private long measureStart, measureCycles;
+
+	// Starts pacing from now.
+	void start(long now, long elapsedCycles) {
+		deadline = now;
+		lastRender = now - SECOND;
+		measureStart = now;
+		measureCycles = elapsedCycles;
+		lag = 0;
+	}
+
+	// How long a frame should take on the wall clock.
+	public long frameNanos() {
+		return SECOND * 100 / ((long)FPS * Math.max(percent, 1));
+	}
+
+	// Whether the monitor should hear about this frame's writes. Behind schedule or in
+	// turbo mode, frames go by faster than anyone can watch them, so only FPS of them a
+	// second are shown.
+	boolean shouldRender(long now) {
+		if ((turbo || lag > 0) && now - lastRender < SECOND / FPS) {
+			framesSkipped++;
+			return false;
+		}
+		lastRender = now;
+		return true;
+	}
+
+	// Ends a frame, returning how long to wait before starting the next.
+	long endFrame(long now, long elapsedCycles) {
+		if (now - measureStart >= MEASURE_PERIOD) {
+			achievedHz = (double)(elapsedCycles - measureCycles) * SECOND / (now - measureStart);
+			measureStart = now;
+			measureCycles = elapsedCycles;
+		}
+
+		if (turbo) {
+			deadline = now;
+			lag = 0;
+			return 0;
+		}
+		deadline += frameNanos();
+		long wait = deadline - now;
+		lag = Math.max(0, -wait);
+		if (lag > MAX_LAG)
+			deadline = now;
+		return Math.max(0, wait);
+	}
+}
@@ -1,6 +1,8 @@
 package net.ian.dcpu;
 
-public class Hardware {
+import java.nio.ByteBuffer;
+
+public abstract class Hardware {
 	public final int id;
 	public final int version;
 	public final int manufacturer;
@@ -13,5 +15,28 @@ public class Hardware {
 
 	public void interrupt() {}
 	
+	// Whether HWI with A = a changes nothing the second time running, just reading the
+	// device or setting what's set already. IdleDetector only skips polling loops whose
+	// HWIs all are, since it can't see inside a device.
+	public boolean isIdempotent(int a) {
+		return false;
+	}
+	
 	public void tick() {}
+	
+	// Snapshot hooks (see Snapshot). A device with state of its own writes it in
+	// saveState(), in exactly stateSize() bytes, and reads it back in loadState(), which
+	// also reschedules any events the device had pending.
+	public int stateSize() {
+		return 0;
+	}
+	
+	public void saveState(ByteBuffer out) {}
+	
+	public void loadState(ByteBuffer in) {}
+	
+	// A new device of the same kind, attached to cpu, for DCPU.fork(). It should come up
+	// as freshly made; its state is copied over afterwards with saveState() and loadState(),
+	// so anything not in those is lost in the copy.
+	public abstract Hardware copyFor(DCPU cpu);
 }
@@ -0,0 +1,112 @@
+package net.ian.dcpu;
+
+// Spots a program waiting in a loop that can't get anywhere on its own: SUB PC, 1, or
+// polling a device with HWI until something turns up. If one time round the loop leaves
+// the registers, memory and interrupt state exactly as they were, every time round after
+// it will too, until a device ticks or an interrupt comes in. So instead of running the
+// loop, the cycle count is moved on to where running it would have left it. A device
+// keeps state of its own, so a loop only counts if its HWIs are ones the device says
+// are idempotent (Hardware.isIdempotent()).
+public class IdleDetector {
+	// The longest loop looked for, in instructions.
+	private static final int MAX_STEPS = 32;
+	// After a look finds the program busy, the next few calls don't look at all: one, then
+	// two, and so on up to MAX_BACKOFF. Each look steps through the interpreter, which
+	// would otherwise tax a busy program before every slice it runs.
+	private static final int MAX_BACKOFF = 16;
+
+	private final DCPU cpu;
+	private final char[] registers;
+	private int backoff, wait;
+
+	// Cycles skipped over instead of being run.
+	public long idleCycles;
+
+	public IdleDetector(DCPU cpu) {
+		this.cpu = cpu;
+		registers = new char[DCPU.Register.values().length];
+	}
+
+	// Runs the CPU once round the loop it's in. If that changed nothing, skips ahead to
+	// untilCycles and returns true. Otherwise the CPU is left wherever it got to.
+	public boolean skip(int untilCycles) {
+		DCPU cpu = this.cpu;
+		if (!cpu.running || cpu.skipping || cpu.cycles >= untilCycles)
+			return false;
+		if (wait > 0) {
+			wait--;
+			return false;
+		}
+		if (loop(untilCycles)) {
+			backoff = 0;
+			return true;
+		}
+		backoff = Math.min(Math.max(backoff * 2, 1), MAX_BACKOFF);
+		wait = backoff;
+		return false;
+	}
+
+	private boolean loop(int untilCycles) {
+		DCPU cpu = this.cpu;
+
+		int pc = cpu.PC, cycles = cpu.cycles;
+		long instructions = cpu.instructionCount;
+		int changes = cpu.memoryChanges;
+		char sp = cpu.SP, ex = cpu.EX, ia = cpu.IA;
+		boolean iaq = cpu.iaq;
+		long added = cpu.interrupts.added(), taken = cpu.interrupts.taken();
+		System.arraycopy(cpu.register, 0, registers, 0, registers.length);
+
+		int steps = 0;
+		do {
+			if (++steps > MAX_STEPS || !idempotent())
+				return false;
+			cpu.engine.step();
+			if (!cpu.running || cpu.cycles >= untilCycles)
+				return false;
+		} while (cpu.PC != pc || cpu.skipping);
+
+		if (cpu.memoryChanges != changes || cpu.SP != sp || cpu.EX != ex || cpu.IA != ia || cpu.iaq != iaq
+				|| cpu.interrupts.added() != added || cpu.interrupts.taken() != taken)
+			return false;
+		for (int i = 0; i < registers.length; i++) {
+			if (cpu.register[i] != registers[i])
+				return false;
+		}
+
+		// The interpreter would keep going round until it reached untilCycles.
+		int period = cpu.cycles - cycles;
+		if (period <= 0)
+			return false;
+		int times = (untilCycles - cpu.cycles + period - 1) / period;
+		cpu.cycles += times * period;
+		cpu.instructionCount += times * (cpu.instructionCount - instructions);
+		idleCycles += (long)times * period;
+		return true;
+	}
+
+	// Whether the next step could be repeated without changing anything loop() doesn't
+	// compare: false for an HWI that isn't idempotent, or one whose device can't be told
+	// without running it, and for an interrupt, since that runs the handler's code instead.
+	private boolean idempotent() {
+		DCPU cpu = this.cpu;
+		if (cpu.skipping)
+			return true;
+		if (cpu.interruptPending())
+			return false;
+		int insn = Instruction.decode(cpu.memory.get(cpu.PC));
+		if (!Instruction.isSpecial(insn) || Instruction.opcode(insn) != 0x12)
+			return true;
+		int mode = Instruction.a(insn), device;
+		if (mode <= 0x07)
+			device = cpu.register[mode];
+		else if (mode == 0x1f)
+			device = cpu.memory.get((cpu.PC + 1) & 0xffff);
+		else if (mode >= 0x20)
+			device = (mode - 0x21) & 0xffff;
+		else
+			return false;
+		return device < cpu.devices.size()
+				&& cpu.devices.get(device).isIdempotent(cpu.register[DCPU.Register.A.ordinal()]);
+	}
+}
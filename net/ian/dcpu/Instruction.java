@@ -0,0 +1,101 @@
+package net.ian.dcpu;
+
+// Predecoded instructions. Everything needed to dispatch an instruction (opcode, operand
+// modes, length, base cycle cost, whether it's an IF) depends only on its first word, so
+// every possible word is decoded once up front and packed into an int:
+//   bits 0-4: opcode, 5-10: a, 11-15: b, 16: special, 17-18: length, 19-22: cycles, 23: conditional
+// Looking the word up (rather than the address) means self-modifying code needs no invalidation.
+public final class Instruction {
+	private static final int SPECIAL = 1 << 16;
+	private static final int CONDITIONAL = 1 << 23;
+
+	// Base cycle costs, indexed by opcode. IFs take one more cycle when they don't skip.
+	private static final int[] basicCycles = {
+		0, 1, 2, 2, 2, 2, 3, 3, 3,
+		4, // MDI falls through into AND in the interpreter, so it pays for both.
+		1, 1, 1, 1, 1, 1, 2, 2, 2, 2, 2, 2, 2, 2, 0, 0, 3, 3, 0, 0, 2, 2
+	};
+	private static final int[] specialCycles = {
+		0, 3, 0, 0, 0, 0, 0, 0, 4, 1, 1, 3, 2, 0, 0, 0,
+		2, 4, 4, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0
+	};
+
+	private static final int[] table = new int[0x10000];
+
+	static {
+		for (int word = 0; word < 0x10000; word++)
+			table[word] = decodeWord(word);
+	}
+
+	private Instruction() {}
+
+	public static int decode(char word) {
+		return table[word];
+	}
+
+	private static int decodeWord(int word) {
+		int opcode, a, b = 0;
+		boolean special = (word & 0b11111) == 0;
+		if (special) {
+			// Non-basic opcode. aaaaaaooooo00000
+			opcode = word >> 5 & 0b11111;
+			a = word >> 10 & 0b111111;
+		} else {
+			// Basic opcode. aaaaaabbbbbooooo
+			opcode = word & 0b11111;
+			a = word >> 10 & 0b111111;
+			b = word >> 5 & 0b11111;
+		}
+
+		int length = 1, cycles = special ? specialCycles[opcode] : basicCycles[opcode];
+		if (hasNextWord(a)) {
+			length++;
+			cycles++;
+		}
+		if (!special && hasNextWord(b)) {
+			length++;
+			cycles++;
+		}
+
+		int insn = opcode | a << 5 | b << 11 | length << 17 | cycles << 19;
+		if (special)
+			insn |= SPECIAL;
+		else if (opcode >= 0x10 && opcode <= 0x17)
+			insn |= CONDITIONAL;
+		return insn;
+	}
+
+	// Whether an operand mode reads the word following the instruction.
+	public static boolean hasNextWord(int mode) {
+		return (mode >= 0x10 && mode <= 0x17) || mode == 0x1a || mode == 0x1e || mode == 0x1f;
+	}
+
+	public static int opcode(int insn) {
+		return insn & 0b11111;
+	}
+
+	public static int a(int insn) {
+		return insn >> 5 & 0b111111;
+	}
+
+	// Always 0 for special instructions.
+	public static int b(int insn) {
+		return insn >> 11 & 0b11111;
+	}
+
+	public static boolean isSpecial(int insn) {
+		return (insn & SPECIAL) != 0;
+	}
+
+	public static int length(int insn) {
+		return insn >> 17 & 0b11;
+	}
+
+	public static int cycles(int insn) {
+		return insn >> 19 & 0b1111;
+	}
+
+	public static boolean isConditional(int insn) {
+		return (insn & CONDITIONAL) != 0;
+	}
+}
@@ -0,0 +1,336 @@
+package net.ian.dcpu;
+
+import net.ian.dcpu.DCPU.Register;
+
+// The reference interpreter. It resolves every operand to a location, runs the
+// instruction on the loaded values and writes both operands back, and can trace
+// each step when DCPU.debug is on. Slow, but the one the other engines answer to.
+public class Interpreter extends Engine {
+	public Interpreter(DCPU cpu) {
+		super(cpu);
+	}
+	
+	@Override
+	public Engine copyFor(DCPU cpu) {
+		return new Interpreter(cpu);
+	}
+	
+	private void debug(Object o) {
+		if (DCPU.debug)
+			System.err.print(o);
+	}
+	
+	private void debugln(Object o) {
+		if (DCPU.debug)
+			System.err.println(o);
+	}
+	
+	private void debugf(String s, Object... o) {
+		if (DCPU.debug)
+			System.err.printf(s, o);
+	}
+	
+	// Operands are resolved to locations: memory addresses below DCPU.MEMORY_SIZE, then
+	// the registers, SP, PC and EX, and finally literals (with the value in the low 16 bits).
+	private static final int LOC_REGISTER = DCPU.MEMORY_SIZE;
+	private static final int LOC_SP = LOC_REGISTER + 8;
+	private static final int LOC_PC = LOC_SP + 1;
+	private static final int LOC_EX = LOC_PC + 1;
+	private static final int LOC_LITERAL = 0x20000;
+	
+	private int handleArgument(int code, boolean isA) {
+		debugf("0x%s: ", Integer.toHexString(code));
+		if (code >= 0x0 && code <= 0x7) {
+			debug(Register.values()[code]);
+			return LOC_REGISTER + code;
+		} else if (code >= 0x8 && code <= 0xf) {
+			debugf("[%s]", Register.values()[code - 0x8]);
+			return cpu.register[code - 0x8];
+		} else if (code >= 0x10 && code <= 0x17) {
+			debugf("[next word + %s]", Register.values()[code - 0x10]);
+			return (cpu.memory.get(cpu.PC++) + cpu.register[code - 0x10]) & 0xffff;
+		} else if (code == 0x18) {
+			debug(isA ? "POP" : "PUSH");
+			return isA ? cpu.SP++ : --cpu.SP;
+		} else if (code == 0x19) {
+			debug("PEEK");
+			return cpu.SP;
+		} else if (code == 0x1a) {
+			debug("PICK " + (int)cpu.memory.get(cpu.PC));
+			return (cpu.SP + cpu.memory.get(cpu.PC++)) & 0xffff;
+		} else if (code == 0x1b) {
+			debug("SP");
+			return LOC_SP;
+		} else if (code == 0x1c) {
+			debug("PC");
+			return LOC_PC;
+		} else if (code == 0x1d) {
+			debug("EX");
+			return LOC_EX;
+		} else if (code == 0x1e) {
+			debug("[next word]");
+			return cpu.memory.get(cpu.PC++);
+		} else if (code == 0x1f) {
+			debug("next word (literal)");
+			return LOC_LITERAL | cpu.memory.get(cpu.PC++);
+		}
+		// Only should happen if argument is A.
+		if (!isA)
+			debugln("Error: Unknown argument 0x" + Integer.toHexString(code) + " in B.");
+		else
+			debug("literal: " + (code - 0x21));
+		return LOC_LITERAL | ((code - 0x21) & 0xffff);
+	}
+	
+	private char load(int loc) {
+		if (loc < LOC_REGISTER)
+			return cpu.read(loc);
+		if (loc >= LOC_LITERAL)
+			return (char)loc;
+		switch (loc) {
+		case LOC_SP: return cpu.SP;
+		case LOC_PC: return cpu.PC;
+		case LOC_EX: return cpu.EX;
+		default: return cpu.register[loc - LOC_REGISTER];
+		}
+	}
+	
+	// Writes to literals are silently ignored, as per the spec.
+	private void store(int loc, int value) {
+		if (loc < LOC_REGISTER) {
+			cpu.write(loc, value);
+			return;
+		}
+		switch (loc) {
+		case LOC_SP: cpu.SP = (char)value; break;
+		case LOC_PC: cpu.PC = (char)value; break;
+		case LOC_EX: cpu.EX = (char)value; break;
+		default:
+			if (loc < LOC_LITERAL)
+				cpu.register[loc - LOC_REGISTER] = (char)value;
+		}
+	}
+	
+	private void skipIf(boolean test) {
+		// IF instructions take an extra cycle if the test fails.
+		if (!test)
+			cpu.cycles++;
+		cpu.skipping = test;
+	}
+	
+	private void processBasic(int opcode, int locA, int locB) {
+		int a = load(locA);
+		int b = load(locB);
+		int ex = 0;
+		
+		if ((opcode - 1) < Assembler.basicOps.length)
+			debugln(Assembler.basicOps[opcode - 1]);
+		
+		switch (opcode) {
+		case 0x1: // SET - sets b to a
+			b = a;
+			break;
+		case 0x2: // ADD - add a to b
+			ex = (b += a) > 0xffff ? 1 : 0;
+			break;
+		case 0x3: // SUB - subtract from b
+			ex = (b -= a) < 0 ? 0xffff : 0;
+			break;
+		case 0x4: // MUL - multiplies b by a
+			ex = (b *= a) >> 16 & 0xffff;
+			break;
+		case 0x5: // MLI - multiplies signed values
+			b = (short)a * (short)b;
+			ex = b >> 16 & 0xffff;
+			break;
+		case 0x6: // DIV divides b by a
+			if (a == 0) {
+				b = 0;
+				ex = 0;
+			} else {
+				ex = (b << 16) / a;
+				b /= a;
+			}
+			break;
+		case 0x7: // DVI - divides signed values
+			if (a == 0) {
+				b = 0;
+				ex = 0;
+			} else {
+				ex = ((short)b << 16) / (short)a;
+				b = (short)b / (short)a;
+			}
+			break;
+		case 0x8: // MOD - (sets b to b % a)
+			b = (a == 0) ? 0 : b % a;
+			break;
+		case 0x9: // MDI - MOD with signed values
+			b = (a == 0) ? 0 : (short)b % (short)a;
+		case 0xa: // AND - sets b to b & a
+			b &= a;
+			break;
+		case 0xb: // BOR - sets b to b | a
+			b |= a;
+			break;
+		case 0xc: // XOR - sets b to b ^ a
+			b ^= a;
+			break;
+		case 0xd: // SHR - shifts b right by a (logical shift)
+			ex = b << 16 >> a;
+			b >>>= a;
+			break;
+		case 0xe: // ASR - shift b right by a (arithmetic shift)
+			ex = b << 16 >>> a;
+			b >>= a;
+			break;
+		case 0xf: // SHL - shifts b left by a
+			ex = b << a >> 16;
+			b = b << a;
+			break;
+		case 0x10: // IFB - performs next instruction if (b & a) != 0
+			skipIf((b & a) == 0);
+			break;
+		case 0x11: // IFC - performs next instruction if (b & a) == 0
+			skipIf((b & a) != 0);
+			break;
+		case 0x12: // IFE - performs next instruction if b == a
+			skipIf(b != a);
+			break;
+		case 0x13: // IFN - performs next instruction if b != a
+			skipIf(b == a);
+			break;
+		case 0x14: // IFG - performs next instruction if b > a
+			skipIf(b <= a);
+			break;
+		case 0x15: // IFA - IFG with signed values
+			skipIf((short)b <= (short)a);
+			break;
+		case 0x16: // IFL - performs next instruction if b < a
+			skipIf(b >= a);
+			break;
+		case 0x17: // IFU - IFL with signed values
+			skipIf((short)b >= (short)a); 
+			break;
+		case 0x1a: // ADX - sets b to b+a+EX
+			ex = (b += a + ex) > 0xffff ? 1 : 0;
+			break;
+		case 0x1b: // SBX - sets b to b-a+EX
+			ex = (b = b - a + ex) < 0 ? 0xffff : 0;
+			break;
+		case 0x1e: // STI - sets b to a, then increments I and J
+			b = a;
+			cpu.register[Register.I.ordinal()]++;
+			cpu.register[Register.J.ordinal()]++;
+			break;
+		case 0x1f: // STD - sets b to a, then decrements I and J
+			b = a;
+			cpu.register[Register.I.ordinal()]--;
+			cpu.register[Register.J.ordinal()]--;
+			break;	
+		default:
+			debugln("Error: Unimplemented basic instruction: 0x" + Integer.toHexString(opcode));
+		}
+		store(locA, a);
+		store(locB, b);
+		cpu.EX = (char)ex;
+	}
+
+	private void processSpecial(int opcode, int locA) {
+		int a = load(locA);
+		
+		if (opcode > 0 && (opcode - 1) < Assembler.specialOps.length)
+			debugln(Assembler.specialOps[opcode - 1]);
+		
+		switch (opcode) {
+		case 0x0: // EXIT - custom code, makes the processor stop.
+			// This is nice because what to do at an empty instruction is undefined, and
+			// this provides a clean end for simple programs that don't loop forever.
+			debugln("EXIT");
+			cpu.running = false;
+			break;
+		case 0x1: // JSR - pushes the address of the next instruction to the stack, sets PC to a
+			cpu.write(--cpu.SP, cpu.PC);
+			cpu.PC = (char)a;
+			break;
+		case 0x8: // INT - triggers software interrupt with message a
+			cpu.interrupt((char)a);
+			break;
+		case 0x9: // IAG - sets a to IA
+			a = cpu.IA;
+			break;
+		case 0xa: // IAS - sets IA to a
+			cpu.IA = (char)a;
+			break;
+		case 0xb: // RFI - disables interrupt queueing, pops A and then PC from stack.
+			cpu.iaq = false;
+			cpu.setRegister(Register.A, cpu.read(cpu.SP++));
+			cpu.PC = cpu.read(cpu.SP++);
+			break;
+		case 0xc: // IAQ - if a is nonzero, interrupts are queued instead of triggered. otherwise they are triggered.
+			cpu.iaq = a == 0 ? false : true;
+			break;
+		case 0x10: // HWN - sets a to number of connected devices
+			a = cpu.devices.size();
+			break;
+		case 0x11: // HWQ - sets A, B, C, X, and Y to info about hardware a
+			cpu.queryDevice(a);
+			break;
+		case 0x12: // HWI - send an interrupt to hardware a
+			if (!cpu.interruptDevice(a)) return;
+			break;
+		default:
+			debugln("Error: Unimplemented special instruction: 0x" + Integer.toHexString(opcode));
+		}
+		
+		store(locA, a);
+	}
+	
+	@SuppressWarnings("unused")
+	@Override
+	public void step() {
+		if (DCPU.debug && cpu.labels != null && cpu.labels.containsKey((int)cpu.PC)) {
+			System.err.println(cpu.labels.get((int)cpu.PC));
+		}
+		
+		int insn = Instruction.decode(cpu.memory.get(cpu.PC));
+		if (cpu.skipping) {
+			if (cpu.trace != null)
+				cpu.trace.record(cpu, TraceRecorder.SKIPPED);
+			cpu.PC += Instruction.length(insn);
+			// Skipping an IF skips the instruction after it as well.
+			cpu.skipping = Instruction.isConditional(insn);
+			return;
+		}
+		
+		boolean interrupted = cpu.triggerInterrupt();
+		if (interrupted)
+			insn = Instruction.decode(cpu.memory.get(cpu.PC));
+		if (cpu.trace != null)
+			cpu.trace.record(cpu, interrupted ? TraceRecorder.INTERRUPT : 0);
+		Profiler profiler = cpu.profiler;
+		if (profiler != null)
+			profiler.before(cpu, interrupted);
+		
+		cpu.PC++;
+		cpu.cycles += Instruction.cycles(insn);
+		int opcode = Instruction.opcode(insn);
+
+		debug("A: ");
+		int a = handleArgument(Instruction.a(insn), true);
+		if (DCPU.debug)
+			debugln(" = " + (int)load(a));
+		if (Instruction.isSpecial(insn)) {
+			processSpecial(opcode, a);
+		} else {
+			debug("B: ");
+			int b = handleArgument(Instruction.b(insn), false);
+			if (DCPU.debug)
+				debugln(" = " + (int)load(b));
+			processBasic(opcode, a, b);
+		}
+		
+		cpu.instructionCount++;
+		if (profiler != null)
+			profiler.after(cpu, insn);
+	}
+}
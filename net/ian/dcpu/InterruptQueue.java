@@ -0,0 +1,123 @@
+package net.ian.dcpu;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// The DCPU's queue of interrupt messages. Devices, timers and UI threads add to it from
+// wherever they are without taking a lock; only the CPU's thread takes messages out.
+// Every message gets a ticket, and each slot's sequence number says whose turn it is:
+// the slot is free for ticket t while it reads t, and holds t's message once it reads t + 1.
+// A producer that finds the slot for its ticket still holding the message from a lap
+// before has found the queue full.
+public class InterruptQueue {
+	// The spec's limit: any more than this and the DCPU catches fire.
+	public static final int CAPACITY = 256;
+	private static final int MASK = CAPACITY - 1;
+
+	private final AtomicLongArray sequence = new AtomicLongArray(CAPACITY);
+	private final char[] messages = new char[CAPACITY];
+	// The next ticket to hand a producer, and the next one the consumer takes.
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+	// The most messages ever waiting at once.
+	private final AtomicInteger highWater = new AtomicInteger();
+	// Messages turned away because the queue was full.
+	private final LongAdder dropped = new LongAdder();
+
+	public InterruptQueue() {
+		for (int i = 0; i < CAPACITY; i++)
+			sequence.set(i, i);
+	}
+
+	// Adds msg to the back of the queue. Returns false if the queue is full. Safe to
+	// call from any thread.
+	public boolean offer(char msg) {
+		long ticket;
+		while (true) {
+			ticket = tail.get();
+			long seq = sequence.get((int)ticket & MASK);
+			if (seq == ticket) {
+				if (tail.compareAndSet(ticket, ticket + 1))
+					break;
+			} else if (seq < ticket) {
+				dropped.increment();
+				return false;
+			}
+			// Otherwise another producer took this ticket first.
+		}
+		int slot = (int)ticket & MASK;
+		messages[slot] = msg;
+		sequence.lazySet(slot, ticket + 1);
+
+		int depth = (int)(ticket + 1 - head.get());
+		int most;
+		while (depth > (most = highWater.get()) && !highWater.compareAndSet(most, depth))
+			;
+		return true;
+	}
+
+	// Whether there's no message ready to take. Only the CPU thread gets a reliable answer.
+	public boolean isEmpty() {
+		long ticket = head.get();
+		return sequence.get((int)ticket & MASK) != ticket + 1;
+	}
+
+	// Takes the message at the front of the queue, or returns -1 if there isn't one.
+	// Only the CPU thread calls this.
+	int poll() {
+		long ticket = head.get();
+		int slot = (int)ticket & MASK;
+		if (sequence.get(slot) != ticket + 1)
+			return -1;
+		char msg = messages[slot];
+		sequence.lazySet(slot, ticket + CAPACITY);
+		head.lazySet(ticket + 1);
+		return msg;
+	}
+
+	// The messages ready to take, oldest first, leaving them where they are. Only the CPU
+	// thread calls this.
+	char[] waiting() {
+		long first = head.get();
+		int count = 0;
+		while (count < CAPACITY && sequence.get((int)(first + count) & MASK) == first + count + 1)
+			count++;
+		char[] waiting = new char[count];
+		for (int i = 0; i < count; i++)
+			waiting[i] = messages[(int)(first + i) & MASK];
+		return waiting;
+	}
+
+	// Drops every waiting message. Only the CPU thread calls this.
+	void clear() {
+		while (poll() >= 0)
+			;
+	}
+
+	// Messages added to the queue so far, including any a producer is still putting in.
+	public long added() {
+		return tail.get();
+	}
+
+	// Messages taken off the queue so far.
+	public long taken() {
+		return head.get();
+	}
+
+	// How many messages are waiting, counting any a producer is still putting in.
+	public int depth() {
+		return (int)Math.max(0, tail.get() - head.get());
+	}
+
+	// How many messages offer() has turned away.
+	public long dropped() {
+		return dropped.sum();
+	}
+
+	// The most messages that have been waiting at once.
+	public int highWater() {
+		return highWater.get();
+	}
+}
@@ -0,0 +1,167 @@
+package net.ian.dcpu;
+
+import java.util.Arrays;
+
+// Compiles hot basic blocks to JVM bytecode (see BlockCompiler) and runs them, falling
+// back to a FastInterpreter for everything else. Blocks only run from run(), between
+// interrupts, and only when the whole block fits before the cycle target, so the CPU
+// ends up in the same state at the same cycle counts as with the interpreter.
+public class JitEngine extends Engine {
+	// How many times execution has to reach an address before a block is compiled there.
+	private static final int THRESHOLD = 16;
+	// How many times blocks starting at an address can be thrown away because their code
+	// was written to before the address is left to the interpreter for good. Self-modifying
+	// loops would otherwise be recompiled, a new class each time, forever.
+	private static final int MAX_INVALIDATIONS = 4;
+
+	private final FastInterpreter interpreter;
+	private final BlockCompiler compiler = new BlockCompiler();
+
+	// Compiled blocks by start address.
+	private final CompiledBlock[] blocks = new CompiledBlock[DCPU.MEMORY_SIZE];
+	// How many blocks were compiled from each address.
+	private final char[] coverage = new char[DCPU.MEMORY_SIZE];
+	// Visits to each address. Counters wrap, so code that couldn't be compiled gets
+	// another look every so often rather than never or every time.
+	private final byte[] heat = new byte[DCPU.MEMORY_SIZE];
+	// Blocks thrown away by writes, by start address, up to MAX_INVALIDATIONS.
+	private final byte[] invalidations = new byte[DCPU.MEMORY_SIZE];
+	// Words covered by some block on each page. Pages with none aren't code pages any more.
+	private final int[] pageWords = new int[DCPU.MEMORY_SIZE >>> 8];
+	private int classes;
+	// The code being compiled, copied out of memory at the same addresses.
+	private final char[] code = new char[DCPU.MEMORY_SIZE];
+
+	public int blocksCompiled, blocksInvalidated;
+
+	public JitEngine(DCPU cpu) {
+		super(cpu);
+		interpreter = new FastInterpreter(cpu);
+	}
+
+	// Brings along every block still installed, preloaded ones included, since the memory
+	// they were compiled from is the same in the copy.
+	@Override
+	public Engine copyFor(DCPU cpu) {
+		JitEngine copy = new JitEngine(cpu);
+		for (CompiledBlock block : blocks) {
+			if (block != null)
+				copy.install(block.copy());
+		}
+		return copy;
+	}
+
+	@Override
+	public void step() {
+		interpreter.step();
+	}
+
+	@Override
+	public void run(int untilCycles) {
+		DCPU cpu = this.cpu;
+		while (cpu.cycles < untilCycles && cpu.running) {
+			// Compiled blocks don't trace or profile, so those run everything through the interpreter.
+			if (!cpu.skipping && !cpu.interruptPending() && cpu.trace == null && cpu.profiler == null) {
+				int pc = cpu.PC;
+				CompiledBlock block = blocks[pc];
+				if (block == null && invalidations[pc] < MAX_INVALIDATIONS && ++heat[pc] == THRESHOLD)
+					block = compile(pc);
+				if (block != null && block.run(cpu, untilCycles))
+					continue;
+			}
+			interpreter.step();
+		}
+	}
+
+	private CompiledBlock compile(int start) {
+		// No block is longer than MAX_WORDS.
+		cpu.memory.get(start, code, start, Math.min(BlockCompiler.MAX_WORDS, DCPU.MEMORY_SIZE - start));
+		CompiledBlock loop = CopyLoop.match(code, start);
+		if (loop != null) {
+			install(loop);
+			return loop;
+		}
+		BlockCompiler.Plan plan = compiler.plan(code, start);
+		if (plan == null)
+			return null;
+		String name = String.format("net/ian/dcpu/Block_%04x_%d", start, classes++);
+		byte[] bytes = compiler.generate(name, code, plan);
+		CompiledBlock block;
+		try {
+			block = (CompiledBlock)new BlockLoader().define(name.replace('/', '.'), bytes)
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Couldn't load the block compiled at " + Integer.toHexString(start), e);
+		}
+		block.start = start;
+		block.length = plan.words;
+		block.leadCycles = plan.leadCycles;
+		install(block);
+		blocksCompiled++;
+		return block;
+	}
+
+	// Adds a block compiled elsewhere (by AotCompiler) from the code now in memory.
+	public void preload(CompiledBlock block) {
+		if (blocks[block.start] != null)
+			remove(blocks[block.start]);
+		install(block);
+	}
+
+	private void install(CompiledBlock block) {
+		blocks[block.start] = block;
+		for (int addr = block.start; addr < block.start + block.length; addr++) {
+			if (coverage[addr]++ == 0)
+				pageWords[addr >>> 8]++;
+			cpu.codePages[addr >>> 8] = true;
+		}
+	}
+
+	@Override
+	void invalidate(int addr) {
+		if (coverage[addr] == 0)
+			return;
+		for (int start = Math.max(0, addr - BlockCompiler.MAX_WORDS + 1); start <= addr; start++) {
+			CompiledBlock block = blocks[start];
+			if (block != null && start + block.length > addr) {
+				remove(block);
+				if (invalidations[start] < MAX_INVALIDATIONS)
+					invalidations[start]++;
+			}
+		}
+	}
+
+	private void remove(CompiledBlock block) {
+		block.valid = false;
+		blocks[block.start] = null;
+		for (int addr = block.start; addr < block.start + block.length; addr++) {
+			if (--coverage[addr] == 0 && --pageWords[addr >>> 8] == 0)
+				cpu.codePages[addr >>> 8] = false;
+		}
+		blocksInvalidated++;
+	}
+
+	@Override
+	void reset() {
+		for (CompiledBlock block : blocks) {
+			if (block != null)
+				block.valid = false;
+		}
+		Arrays.fill(blocks, null);
+		Arrays.fill(coverage, (char)0);
+		Arrays.fill(heat, (byte)0);
+		Arrays.fill(invalidations, (byte)0);
+		Arrays.fill(pageWords, 0);
+	}
+
+	// Each block gets a loader of its own, so it can be collected once it's dropped.
+	private static class BlockLoader extends ClassLoader {
+		BlockLoader() {
+			super(CompiledBlock.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
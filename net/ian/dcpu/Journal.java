@@ -0,0 +1,192 @@
+package net.ian.dcpu;
+
+// Lets a debugger run the CPU backwards. While DCPU.journal is set, every memory write
+// goes into a ring as its address and the value it replaced, and the registers are
+// checkpointed every slice, a few hundred cycles apart. Going back undoes the writes
+// made since the nearest checkpoint, newest first, puts the checkpoint's registers back,
+// and steps forward from there to the instruction asked for.
+//
+// Only the CPU goes back. Devices keep their state, and interrupts they raised after the
+// checkpoint don't come round again (INT instructions do, since they're run again).
+public class Journal {
+	// Registers, SP, PC, EX, IA, and the iaq, skipping and onFire flags.
+	private static final int STATE = DCPU.Register.values().length + 5;
+
+	private final DCPU cpu;
+
+	// Memory writes, address << 16 | old value. The ring holds the last writes.length.
+	private final int[] writes;
+	private long writeCount;
+
+	// Checkpoints, in a ring like the writes.
+	private final int checkpointMask;
+	private final long[] checkpointWrites;
+	private final long[] checkpointInstructions;
+	private final int[] checkpointCycles;
+	private final long[] checkpointCycleBase;
+	private final char[] checkpointState;
+	// Interrupts waiting at each checkpoint, or null if there were none.
+	private final char[][] checkpointQueue;
+	private long checkpointCount;
+
+	// Set while writes are being undone, so they aren't recorded.
+	private boolean rewinding;
+
+	// Enough for a few seconds at the default speed.
+	public Journal(DCPU cpu) {
+		this(cpu, 1 << 20, 1 << 14);
+	}
+
+	// Both sizes are rounded up to powers of two.
+	public Journal(DCPU cpu, int maxWrites, int maxCheckpoints) {
+		this.cpu = cpu;
+		writes = new int[Integer.highestOneBit(Math.max(maxWrites - 1, 1)) << 1];
+		int checkpoints = Integer.highestOneBit(Math.max(maxCheckpoints - 1, 1)) << 1;
+		checkpointMask = checkpoints - 1;
+		checkpointWrites = new long[checkpoints];
+		checkpointInstructions = new long[checkpoints];
+		checkpointCycles = new int[checkpoints];
+		checkpointCycleBase = new long[checkpoints];
+		checkpointState = new char[checkpoints * STATE];
+		checkpointQueue = new char[checkpoints][];
+	}
+
+	// Called by DCPU.write() before a write changes memory.
+	void recordWrite(int addr, char old) {
+		if (!rewinding)
+			writes[(int)writeCount++ & (writes.length - 1)] = addr << 16 | old;
+	}
+
+	// Notes where the CPU is. Called between instructions, once a slice.
+	void checkpoint() {
+		DCPU cpu = this.cpu;
+		if (checkpointCount > 0) {
+			int last = (int)(checkpointCount - 1) & checkpointMask;
+			if (checkpointInstructions[last] == cpu.instructionCount && checkpointWrites[last] == writeCount
+					&& checkpointState[last * STATE + STATE - 4] == cpu.PC)
+				return;
+		}
+		int slot = (int)checkpointCount++ & checkpointMask;
+		checkpointWrites[slot] = writeCount;
+		checkpointInstructions[slot] = cpu.instructionCount;
+		checkpointCycles[slot] = cpu.cycles;
+		checkpointCycleBase[slot] = cpu.cycleBase;
+		int at = slot * STATE;
+		System.arraycopy(cpu.register, 0, checkpointState, at, cpu.register.length);
+		at += cpu.register.length;
+		checkpointState[at++] = cpu.SP;
+		checkpointState[at++] = cpu.PC;
+		checkpointState[at++] = cpu.EX;
+		checkpointState[at++] = cpu.IA;
+		checkpointState[at] = (char)((cpu.iaq ? 1 : 0) | (cpu.skipping ? 2 : 0) | (cpu.onFire ? 4 : 0));
+		checkpointQueue[slot] = cpu.interrupts.isEmpty() ? null : cpu.interrupts.waiting();
+	}
+
+	// Forgets everything. Called when memory is replaced wholesale.
+	public void reset() {
+		writeCount = 0;
+		checkpointCount = 0;
+	}
+
+	// Goes back one instruction. Returns false if that's further back than the journal goes.
+	public boolean stepBack() {
+		return rewindTo(cpu.instructionCount - 1);
+	}
+
+	// Goes back to just after the given instruction (counting like cpu.instructionCount),
+	// before skipping anything a failed IF skips. Returns false if the journal doesn't go
+	// back that far.
+	public boolean rewindTo(long instruction) {
+		if (instruction < 0 || instruction > cpu.instructionCount)
+			return false;
+		// A checkpoint at the instruction itself might come after a skip that followed it.
+		long checkpoint = checkpointCount - 1;
+		while (checkpoint >= oldestCheckpoint() && checkpointInstructions[(int)checkpoint & checkpointMask] >= Math.max(instruction, 1L))
+			checkpoint--;
+		if (checkpoint < oldestCheckpoint())
+			return false;
+		restore(checkpoint);
+		while (cpu.instructionCount < instruction)
+			cpu.engine.step();
+		return true;
+	}
+
+	// Goes back to just before the instruction that last wrote to addr. Returns false if
+	// the journal has no write there.
+	public boolean rewindToWrite(int addr) {
+		addr &= 0xffff;
+		long write = writeCount - 1;
+		while (write >= oldestWrite() && writes[(int)write & (writes.length - 1)] >>> 16 != addr)
+			write--;
+		if (write < oldestWrite())
+			return false;
+		long checkpoint = checkpointCount - 1;
+		while (checkpoint >= oldestCheckpoint() && checkpointWrites[(int)checkpoint & checkpointMask] > write)
+			checkpoint--;
+		if (checkpoint < oldestCheckpoint())
+			return false;
+
+		// Compiled code counts instructions a block at a time, so which one made the write
+		// is found by stepping up to it.
+		long now = cpu.instructionCount, before;
+		restore(checkpoint);
+		do {
+			before = cpu.instructionCount;
+			cpu.engine.step();
+		} while (writeCount <= write && cpu.instructionCount <= now);
+		// A device wrote it between instructions, which can't be gone back to.
+		if (writeCount <= write) {
+			rewindTo(now);
+			return false;
+		}
+		return rewindTo(before);
+	}
+
+	// The oldest checkpoint whose writes since are all still in the ring.
+	private long oldestCheckpoint() {
+		long oldest = Math.max(0, checkpointCount - checkpointMask - 1);
+		while (oldest < checkpointCount && checkpointWrites[(int)oldest & checkpointMask] < oldestWrite())
+			oldest++;
+		return oldest;
+	}
+
+	private long oldestWrite() {
+		return Math.max(0, writeCount - writes.length);
+	}
+
+	// Puts the CPU back as it was at a checkpoint, which becomes the newest.
+	private void restore(long checkpoint) {
+		int slot = (int)checkpoint & checkpointMask;
+		DCPU cpu = this.cpu;
+		rewinding = true;
+		try {
+			for (long write = writeCount - 1; write >= checkpointWrites[slot]; write--) {
+				int entry = writes[(int)write & (writes.length - 1)];
+				cpu.write(entry >>> 16, (char)entry);
+			}
+		} finally {
+			rewinding = false;
+		}
+		writeCount = checkpointWrites[slot];
+		checkpointCount = checkpoint + 1;
+
+		cpu.instructionCount = checkpointInstructions[slot];
+		cpu.cycles = checkpointCycles[slot];
+		cpu.cycleBase = checkpointCycleBase[slot];
+		int at = slot * STATE;
+		System.arraycopy(checkpointState, at, cpu.register, 0, cpu.register.length);
+		at += cpu.register.length;
+		cpu.SP = checkpointState[at++];
+		cpu.PC = checkpointState[at++];
+		cpu.EX = checkpointState[at++];
+		cpu.IA = checkpointState[at++];
+		cpu.iaq = (checkpointState[at] & 1) != 0;
+		cpu.skipping = (checkpointState[at] & 2) != 0;
+		cpu.onFire = (checkpointState[at] & 4) != 0;
+		cpu.interrupts.clear();
+		if (checkpointQueue[slot] != null) {
+			for (char msg : checkpointQueue[slot])
+				cpu.interrupts.offer(msg);
+		}
+	}
+}
@@ -2,6 +2,7 @@ package net.ian.dcpu;
 
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -19,7 +20,14 @@ public class Keyboard extends Hardware implements KeyListener {
 	// Max key value seems to be 145.
 	private boolean[] keyStates = new boolean[146];
 	private char interruptMsg;
-	private boolean shouldInterrupt;
+	
+	// Key events come in on the AWT thread, and are handed over to the CPU's.
+	private final Runnable keyEvent = new Runnable() {
+		public void run() {
+			if (interruptMsg != 0)
+				cpu.interrupt(interruptMsg);
+		}
+	};
 	
 	DCPU cpu;
 	
@@ -58,7 +66,7 @@ public class Keyboard extends Hardware implements KeyListener {
 		if (key == -1) return;
 		if (key < 20)
 			addKey((char)key);
-		shouldInterrupt = true;
+		cpu.scheduler.post(keyEvent);
 		keyStates[key] = true;
 	}
 
@@ -66,7 +74,7 @@ public class Keyboard extends Hardware implements KeyListener {
 	public void keyReleased(KeyEvent e) {
 		int key = mapKey(e.getKeyCode());
 		if (key == -1) return;
-		shouldInterrupt = true;
+		cpu.scheduler.post(keyEvent);
 		keyStates[key] = false;
 	}
 	
@@ -74,21 +82,48 @@ public class Keyboard extends Hardware implements KeyListener {
 	public void keyTyped(KeyEvent e) {
 		if (e.getKeyChar() >= 0x20 && e.getKeyChar() <= 0x7f) {
 			addKey(e.getKeyChar());
-			shouldInterrupt = true;
+			cpu.scheduler.post(keyEvent);
 		}
 	}
 	
-	public void tick() {
-		if (interruptMsg != 0 && shouldInterrupt) {
-			cpu.interrupt(interruptMsg);
-			shouldInterrupt = false;
-		}
+	@Override
+	public Hardware copyFor(DCPU cpu) {
+		return new Keyboard(cpu);
+	}
+	
+	// Which keys are down belongs to the host, so it isn't saved.
+	@Override
+	public int stateSize() {
+		return keyring.length * 2 + 4 + 4 + 2;
+	}
+	
+	@Override
+	public void saveState(ByteBuffer out) {
+		for (char key : keyring)
+			out.putChar(key);
+		out.putInt(keyPushPtr).putInt(keyAccessPtr).putChar(interruptMsg);
+	}
+	
+	@Override
+	public void loadState(ByteBuffer in) {
+		for (int i = 0; i < keyring.length; i++)
+			keyring[i] = in.getChar();
+		keyPushPtr = in.getInt();
+		keyAccessPtr = in.getInt();
+		interruptMsg = in.getChar();
+	}
+	
+	// Everything but clearing the buffer, which would drop keys that came in since. Taking a
+	// key changes C, so the loop doesn't look idle then anyway.
+	@Override
+	public boolean isIdempotent(int a) {
+		return a == 1 || a == 2 || a == 3;
 	}
 	
 	public void interrupt() {
-		char b = cpu.getRegister(Register.B).value;
-		int c = cpu.getRegister(Register.C).value;
-		switch (cpu.getRegister(Register.A).value) {
+		char b = cpu.getRegister(Register.B);
+		int c = cpu.getRegister(Register.C);
+		switch (cpu.getRegister(Register.A)) {
 		case 0: // Clear buffer
 			for (int i = 0; i < keyring.length; i++)
 				keyring[i] = 0;
@@ -108,6 +143,6 @@ public class Keyboard extends Hardware implements KeyListener {
 			interruptMsg = b;
 			break;
 		}
-		cpu.getRegister(Register.C).set(c);
+		cpu.setRegister(Register.C, c);
 	}
 }
@@ -0,0 +1,94 @@
+package net.ian.dcpu;
+
+import java.util.Arrays;
+
+// The DCPU's 64K words, kept as 256 pages of 256 words that can be shared between
+// machines. fork() copies the page table, not the pages, and a page is only copied when
+// someone writes to it while it's shared, so a fork costs a few hundred bytes up front
+// and grows with the pages it writes. Pages nobody has written share one page of zeros.
+//
+// Reads and writes here don't tell anyone; DCPU.read() and DCPU.write() do that.
+public class Memory {
+	public static final int PAGE_SIZE = 0x100;
+	public static final int PAGES = DCPU.MEMORY_SIZE / PAGE_SIZE;
+
+	private static final char[] ZERO = new char[PAGE_SIZE];
+
+	private final char[][] pages = new char[PAGES][];
+	// Whether a page belongs to this memory alone, so it can be written in place.
+	private final boolean[] owned = new boolean[PAGES];
+
+	public Memory() {
+		Arrays.fill(pages, ZERO);
+	}
+
+	// addr must be in [0, MEMORY_SIZE).
+	public char get(int addr) {
+		return pages[addr >>> 8][addr & 0xff];
+	}
+
+	public void set(int addr, char value) {
+		writable(addr >>> 8)[addr & 0xff] = value;
+	}
+
+	// Copies length words starting at addr into dest. Doesn't wrap around.
+	public void get(int addr, char[] dest, int offset, int length) {
+		while (length > 0) {
+			int count = Math.min(length, PAGE_SIZE - (addr & 0xff));
+			System.arraycopy(pages[addr >>> 8], addr & 0xff, dest, offset, count);
+			addr += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	// Copies length words from src into memory starting at addr. Doesn't wrap around.
+	public void set(int addr, char[] src, int offset, int length) {
+		while (length > 0) {
+			int count = Math.min(length, PAGE_SIZE - (addr & 0xff));
+			System.arraycopy(src, offset, writable(addr >>> 8), addr & 0xff, count);
+			addr += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	// Zeroes everything, dropping every page.
+	public void clear() {
+		Arrays.fill(pages, ZERO);
+		Arrays.fill(owned, false);
+	}
+
+	// A copy of this memory that shares every page with it until one of them writes there.
+	public Memory fork() {
+		Memory copy = new Memory();
+		System.arraycopy(pages, 0, copy.pages, 0, PAGES);
+		// The pages are shared now, so both sides copy before writing.
+		Arrays.fill(owned, false);
+		return copy;
+	}
+
+	// How many pages this memory has copied for itself.
+	public int ownedPages() {
+		int count = 0;
+		for (boolean mine : owned) {
+			if (mine)
+				count++;
+		}
+		return count;
+	}
+
+	// The page, copied first if it's shared.
+	char[] writable(int page) {
+		if (!owned[page]) {
+			pages[page] = pages[page].clone();
+			owned[page] = true;
+		}
+		return pages[page];
+	}
+
+	// The page for reading. Don't write to it; see writable().
+	char[] page(int page) {
+		return pages[page];
+	}
+}
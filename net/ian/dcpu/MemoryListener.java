@@ -1,8 +1,15 @@
 package net.ian.dcpu;
 
+import java.util.BitSet;
+
 public interface MemoryListener {
+	// Called for each address on a watched page, to filter out the ones the listener doesn't care about.
 	public boolean inMemoryRange(char loc);
 	
 	public void onSet(char location, char value);
+	// Replaces onSet() when DCPU.batchNotifications is on. Called at most once per frame with the
+	// addresses written since the last call; the listener should read the current values from memory.
+	public void onRangeDirty(BitSet dirty);
+	// Only called for ranges registered with DCPU.watchReads().
 	public void onGet(char location, char value);
 }
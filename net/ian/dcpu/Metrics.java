@@ -0,0 +1,312 @@
+package net.ian.dcpu;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+// How an emulator is doing, for running it as a service: speed, how far behind real time
+// it is, the interrupt queue, and where the host's time goes (memory listeners, device
+// ticks, monitor renders). Set DCPU.metrics to collect it. The CPU thread only adds to
+// LongAdders, which other threads read without getting in its way.
+//
+// register() publishes it over JMX, as net.ian.dcpu:type=DCPU,name=<name> and one
+// net.ian.dcpu:type=Device,... per device. start() works out the rates every period and
+// hands everything to the reporters.
+public class Metrics implements MetricsMBean {
+	public static final String DOMAIN = "net.ian.dcpu";
+
+	// Gets everything every period, once start() is called.
+	public interface Reporter {
+		void report(Metrics metrics);
+	}
+
+	// Tick counts and times for one device.
+	public static class Device implements DeviceMetricsMBean {
+		final Hardware device;
+		final LongAdder ticks = new LongAdder();
+		final LongAdder tickNanos = new LongAdder();
+
+		Device(Hardware device) {
+			this.device = device;
+		}
+
+		@Override
+		public String getName() {
+			return device.getClass().getSimpleName();
+		}
+
+		@Override
+		public long getTicks() {
+			return ticks.sum();
+		}
+
+		@Override
+		public double getTickMillis() {
+			return tickNanos.sum() / 1e6;
+		}
+	}
+
+	private final DCPU cpu;
+	private final String name;
+
+	private final LongAdder listenerCalls = new LongAdder();
+	private final LongAdder listenerNanos = new LongAdder();
+	private final LongAdder renders = new LongAdder();
+	private final LongAdder renderNanos = new LongAdder();
+	private final Map<Hardware, Device> devices = new ConcurrentHashMap<>();
+
+	private final List<Reporter> reporters = new CopyOnWriteArrayList<>();
+	private ScheduledExecutorService timer;
+	private volatile MBeanServer server;
+
+	// Rates over the last period.
+	private volatile double mips, hz;
+	private long lastTime, lastInstructions, lastCycles;
+
+	// name tells this DCPU's MBeans apart from other emulators' in the same JVM.
+	public Metrics(DCPU cpu, String name) {
+		this.cpu = cpu;
+		this.name = name;
+		lastTime = System.nanoTime();
+		lastInstructions = cpu.publishedInstructions();
+		lastCycles = cpu.publishedCycles();
+	}
+
+	// Called by DCPU after memory listeners have heard about a change.
+	void listened(long nanos) {
+		listenerCalls.increment();
+		listenerNanos.add(nanos);
+	}
+
+	// Called by DCPU after a device's tick().
+	void ticked(Hardware hardware, long nanos) {
+		Device device = device(hardware);
+		device.ticks.increment();
+		device.tickNanos.add(nanos);
+	}
+
+	// Called by the monitor after it draws the screen.
+	void rendered(long nanos) {
+		renders.increment();
+		renderNanos.add(nanos);
+	}
+
+	// The counts for a device, made the first time it's asked for.
+	public Device device(Hardware hardware) {
+		Device device = devices.get(hardware);
+		if (device == null) {
+			device = new Device(hardware);
+			Device raced = devices.putIfAbsent(hardware, device);
+			if (raced != null)
+				return raced;
+			if (server != null)
+				register(device);
+		}
+		return device;
+	}
+
+	// Publishes the metrics to the platform MBean server.
+	public synchronized void register() throws JMException {
+		if (server != null)
+			return;
+		server = ManagementFactory.getPlatformMBeanServer();
+		server.registerMBean(new StandardMBean(this, MetricsMBean.class), objectName("type=DCPU"));
+		for (Hardware hardware : cpu.devices.toArray(new Hardware[0]))
+			device(hardware);
+		for (Device device : devices.values())
+			register(device);
+	}
+
+	public synchronized void unregister() throws JMException {
+		if (server == null)
+			return;
+		server.unregisterMBean(objectName("type=DCPU"));
+		for (Device device : devices.values()) {
+			ObjectName name = deviceName(device);
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+		}
+		server = null;
+	}
+
+	private synchronized void register(Device device) {
+		if (server == null)
+			return;
+		try {
+			ObjectName name = deviceName(device);
+			if (!server.isRegistered(name))
+				server.registerMBean(new StandardMBean(device, DeviceMetricsMBean.class), name);
+		} catch (JMException e) {
+			System.err.println("Error: Couldn't register metrics for " + device.getName() + ": " + e);
+		}
+	}
+
+	private ObjectName objectName(String properties) throws JMException {
+		return new ObjectName(DOMAIN + ":" + properties + ",name=" + ObjectName.quote(name));
+	}
+
+	private ObjectName deviceName(Device device) throws JMException {
+		return objectName("type=Device,device=" + device.getName() + ",index=" + cpu.devices.indexOf(device.device));
+	}
+
+	public void addReporter(Reporter reporter) {
+		reporters.add(reporter);
+	}
+
+	public void removeReporter(Reporter reporter) {
+		reporters.remove(reporter);
+	}
+
+	// Works out the rates and reports every period, on a thread of its own.
+	public synchronized void start(long period, TimeUnit unit) {
+		if (timer != null)
+			return;
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "DCPU metrics");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timer.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				update();
+				for (Reporter reporter : reporters)
+					reporter.report(Metrics.this);
+			}
+		}, period, period, unit);
+	}
+
+	public synchronized void stop() {
+		if (timer != null) {
+			timer.shutdown();
+			timer = null;
+		}
+	}
+
+	// Works out the rates since the last update. start() does this every period.
+	public synchronized void update() {
+		long now = System.nanoTime(), instructions = cpu.publishedInstructions(), cycles = cpu.publishedCycles();
+		double seconds = (now - lastTime) / 1e9;
+		if (seconds <= 0)
+			return;
+		mips = (instructions - lastInstructions) / seconds / 1e6;
+		hz = (cycles - lastCycles) / seconds;
+		lastTime = now;
+		lastInstructions = instructions;
+		lastCycles = cycles;
+	}
+
+	// A Reporter that prints a line each time.
+	public static Reporter printTo(final PrintStream out) {
+		return new Reporter() {
+			@Override
+			public void report(Metrics metrics) {
+				out.println(metrics);
+			}
+		};
+	}
+
+	// As of the end of the CPU's last slice, so a frame out of date at worst.
+	@Override
+	public long getInstructions() {
+		return cpu.publishedInstructions();
+	}
+
+	@Override
+	public long getCycles() {
+		return cpu.publishedCycles();
+	}
+
+	@Override
+	public double getMips() {
+		return mips;
+	}
+
+	@Override
+	public double getHz() {
+		return hz;
+	}
+
+	@Override
+	public int getTargetHz() {
+		return cpu.hz;
+	}
+
+	@Override
+	public long getCyclesBehind() {
+		return cpu.governor.lag * cpu.hz / 1000_000_000L;
+	}
+
+	@Override
+	public long getFramesSkipped() {
+		return cpu.governor.framesSkipped;
+	}
+
+	@Override
+	public int getInterruptQueueDepth() {
+		return cpu.interrupts.depth();
+	}
+
+	@Override
+	public int getInterruptQueueHighWater() {
+		return cpu.interrupts.highWater();
+	}
+
+	@Override
+	public long getInterruptsDropped() {
+		return cpu.interrupts.dropped();
+	}
+
+	@Override
+	public boolean isOnFire() {
+		return cpu.onFire;
+	}
+
+	@Override
+	public long getListenerCalls() {
+		return listenerCalls.sum();
+	}
+
+	@Override
+	public double getListenerMillis() {
+		return listenerNanos.sum() / 1e6;
+	}
+
+	@Override
+	public long getRenders() {
+		return renders.sum();
+	}
+
+	@Override
+	public double getRenderMillis() {
+		return renderNanos.sum() / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder line = new StringBuilder(String.format(
+				"%s: %.2f MIPS, %.0f Hz (target %d), %d cycles behind, %d frames skipped, interrupts %d queued/%d dropped, "
+				+ "listeners %d calls %.1f ms, renders %d %.1f ms",
+				name, mips, hz, getTargetHz(), getCyclesBehind(), getFramesSkipped(), getInterruptQueueDepth(),
+				getInterruptsDropped(), getListenerCalls(), getListenerMillis(), getRenders(), getRenderMillis()));
+		for (Device device : devices.values())
+			line.append(String.format(", %s %d ticks %.1f ms", device.getName(), device.getTicks(), device.getTickMillis()));
+		return line.toString();
+	}
+}
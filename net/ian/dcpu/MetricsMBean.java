@@ -0,0 +1,20 @@
+package net.ian.dcpu;
+
+// What JMX sees of Metrics.
+public interface MetricsMBean {
+	long getInstructions();
+	long getCycles();
+	double getMips();
+	double getHz();
+	int getTargetHz();
+	long getCyclesBehind();
+	long getFramesSkipped();
+	int getInterruptQueueDepth();
+	int getInterruptQueueHighWater();
+	long getInterruptsDropped();
+	boolean isOnFire();
+	long getListenerCalls();
+	double getListenerMillis();
+	long getRenders();
+	double getRenderMillis();
+}
@@ -1,10 +1,11 @@
 package net.ian.dcpu;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.BitSet;
 
 import javax.imageio.ImageIO;
 
@@ -21,17 +22,26 @@ public class Monitor extends Hardware implements MemoryListener {
 	public static final int CHAR_WIDTH = 4;
 	public static final int CHAR_HEIGHT = 8;
 	
+	public static final int SCREEN_SIZE = COLUMNS * ROWS;
+	public static final int FONT_SIZE = 0x100;
+	public static final int PALETTE_SIZE = 0x10;
+	
 	public static final int BORDER = 12;	
 	public static final int WIDTH = COLUMNS * CHAR_WIDTH + BORDER * 2;
 	public static final int HEIGHT = ROWS * CHAR_HEIGHT + BORDER * 2;
 	
 	public BufferedImage screen;
+	// screen's pixels, which render() writes straight into.
+	private final int[] pixels;
 	
-	public BufferedImage font[];
-	public Color palette[];
+	// Each glyph is packed into an int as in LEM1802 font memory: the first word (the high
+	// half) holds columns 0 and 1, the second columns 2 and 3, a byte a column with the top
+	// row in the low bit. Colors are ARGB.
+	public int font[];
+	public int palette[];
 	public MonitorCell cells[];
 	
-	static Color defaultPalette[] = new Color[16];
+	static int defaultPalette[] = new int[16];
 	
 	static {
 		for (int i = 0; i < 16; i++) {
@@ -44,11 +54,13 @@ public class Monitor extends Hardware implements MemoryListener {
 			if ((i & 0xf) == 6)
 				g -= 0x55;
 			
-			defaultPalette[i] = new Color(r, g, b);
+			defaultPalette[i] = 0xff000000 | r << 16 | g << 8 | b;
 		}
 	}
 	
-	public Color borderColor = Color.BLACK;
+	public static final int BLACK = 0xff000000;
+	
+	public int borderColor = BLACK;
 		
 	private DCPU cpu;
 	// Defaulting to 0x8000 isn't in the current spec,
@@ -56,16 +68,28 @@ public class Monitor extends Hardware implements MemoryListener {
 	private char memStart = 0x8000, fontStart, paletteStart;
 
 	public boolean shouldRender;
+	// What render() has to redraw: the cells that changed since it last ran, and the border.
+	// Guarded by this.
+	private final BitSet dirtyCells = new BitSet(SCREEN_SIZE);
+	private boolean dirtyBorder = true;
+	
+	// Glyphs already drawn in a pair of colors, CHAR_WIDTH * CHAR_HEIGHT pixels a slot, so
+	// drawing a cell is a copy. Keys are character << 8 | fg << 4 | bg, or -1 for an empty
+	// slot; changing a glyph or a palette entry empties the slots that used it. Guarded by this.
+	private static final int CACHE_BITS = 9;
+	private final int[] cacheKeys = new int[1 << CACHE_BITS];
+	private final int[] cachePixels = new int[(1 << CACHE_BITS) * CHAR_WIDTH * CHAR_HEIGHT];
 	
 	public static class MonitorCell {
 		char character;
-		Color fgColor, bgColor;
+		// Palette indices
+		int fg, bg;
 		boolean blink, show;
 		
-		public MonitorCell(char c, Color fg, Color bg, boolean blink) {
+		public MonitorCell(char c, int fg, int bg, boolean blink) {
 			character = c;
-			fgColor = fg;
-			bgColor = bg;
+			this.fg = fg;
+			this.bg = bg;
 			this.blink = blink;
 			show = false;
 		}
@@ -75,114 +99,111 @@ public class Monitor extends Hardware implements MemoryListener {
         super(ID, VERSION, MANUFACTURER);
 		
         screen = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt)screen.getRaster().getDataBuffer()).getData();
         this.cpu = cpu;
         
         cells = new MonitorCell[32 * 12];
         for (int i = 0; i < 32 * 12; i++)
-        	cells[i] = new MonitorCell((char)0, Color.BLACK, Color.BLACK, false);
+        	cells[i] = new MonitorCell((char)0, 0, 0, false);
         
 		font = loadDefaultFont();
 		palette = Arrays.copyOf(defaultPalette, defaultPalette.length);
+		Arrays.fill(cacheKeys, -1);
                 
         cpu.attachDevice(this);
-        cpu.addListener(this);
+        watchMemory();
     }
 	
-	public BufferedImage[] loadDefaultFont() {
-		BufferedImage img;
+	// (Re-)registers the mapped screen, font and palette ranges with the CPU.
+	private void watchMemory() {
+		cpu.unwatch(this);
+		cpu.watch(this, memStart, SCREEN_SIZE);
+		if (fontStart != 0)
+			cpu.watch(this, fontStart, FONT_SIZE);
+		if (paletteStart != 0)
+			cpu.watch(this, paletteStart, PALETTE_SIZE);
+	}
+	
+	// The font image's glyphs, decoded once. Every monitor changes its own copy of them.
+	private static int[] defaultGlyphs;
+	
+	private static synchronized int[] defaultGlyphs() throws IOException {
+		if (defaultGlyphs == null) {
+			BufferedImage img = ImageIO.read(DCPU.class.getResource("/net/ian/dcpu/res/font.png"));
+			int perRow = img.getWidth() / CHAR_WIDTH;
+			int[] glyphs = new int[perRow * (img.getHeight() / CHAR_HEIGHT)];
+			for (int i = 0; i < glyphs.length; i++) {
+				int left = i % perRow * CHAR_WIDTH, top = i / perRow * CHAR_HEIGHT;
+				for (int col = 0; col < CHAR_WIDTH; col++) {
+					for (int row = 0; row < CHAR_HEIGHT; row++) {
+						// The image is black and white, near enough.
+						if ((img.getRGB(left + col, top + row) >> 8 & 0xff) >= 0x80)
+							glyphs[i] |= 1 << ((3 - col) * 8 + row);
+					}
+				}
+			}
+			defaultGlyphs = glyphs;
+		}
+		return defaultGlyphs;
+	}
+	
+	public int[] loadDefaultFont() {
 		try {
-		img = ImageIO.read(DCPU.class.getResource("/net/ian/dcpu/res/font.png"));
-		} catch (IOException e){
+			return defaultGlyphs().clone();
+		} catch (IOException e) {
 			e.printStackTrace();
 			return null;
 		}
-		BufferedImage img2 = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_BYTE_BINARY);
-		Graphics2D g = img2.createGraphics();
-		g.drawImage(img, 0, 0, null);
-		g.dispose();
-				
-		BufferedImage[] defaultFont = new BufferedImage[img2.getWidth() / 4 * (img2.getHeight() / 8)];
-		
-		for (int x = 0; x < img2.getWidth() / 4; x++) {
-			for (int y = 0; y < img2.getHeight() / 8; y++) {
-				defaultFont[y * 32 + x] = img2.getSubimage(x * 4, y * 8, 4, 8);
-			}
-		}
-		
-		return defaultFont;
 	}
 	
 	public void buildFont(int location, char word) {
-		// Actually builds half a font, because a full font takes two words.
-		BufferedImage fontChar = font[location / 2];
-		int half = location % 2;
-		
-		for (int col = 0; col < 2; col++) {
-			for (int row = 0; row < 8; row++) {
-				int color = ((word >> ((1 - col) * 8 + row)) & 1) == 1 ? Color.WHITE.getRGB() : Color.BLACK.getRGB();
-				fontChar.setRGB(col + (half * 2), row, color);
-			}
-		}
+		invalidateCharacter(setFontWord(location, word));
+	}
+	
+	// Stores a font word without redrawing anything, for loops that load the whole font and
+	// call invalidateGlyphs() once at the end. Returns the character it's part of.
+	private int setFontWord(int location, char word) {
+		// Actually builds half a glyph, because a full one takes two words.
+		int i = location / 2;
+		if (location % 2 == 0)
+			font[i] = word << 16 | font[i] & 0xffff;
+		else
+			font[i] = font[i] & 0xffff0000 | word;
+		return i;
 	}
 	
 	public void buildPalette(int index, char word) {
-		int red   = word >> 8;
-        int green = word >> 4 & 0xf;
-        int blue  = word & 0xf;
-        
-        // 255 / 15 = 17
-        palette[index] = new Color(red * 17, green * 17, blue * 17);
+		setPaletteWord(index, word);
+		invalidateColor(index);
 	}
 	
-	public void dumpFont(char start, BufferedImage[] font) {
+	// The same for palette entries.
+	private void setPaletteWord(int index, char word) {
+		int red   = word >> 8 & 0xf;
+		int green = word >> 4 & 0xf;
+		int blue  = word & 0xf;
+		
+		// 255 / 15 = 17
+		palette[index] = 0xff000000 | red * 17 << 16 | green * 17 << 8 | blue * 17;
+	}
+	
+	public void dumpFont(char start, int[] font) {
 		// Stick a font in DCPU memory. For use with MEM_DUMP_FONT.
 		for (int i = 0; i < font.length; i++) {
-			char word = 0;
-			for (int x = 0; x < font[i].getWidth(); x++) {
-				for (int y = 0; y < font[i].getHeight(); y++) {
-					if (font[i].getRGB(x, y) == Color.WHITE.getRGB())
-						word |= 1 << ((3 - x) * 8 + y);
-					char word2 = (char)(word & 0xffff);
-					char word1 = (char)(word >> 16);
-					cpu.memory[start + (i * 2)].set(word1);
-					cpu.memory[start + (i * 2) + 1].set(word2);
-				}
-			}
+			cpu.write(start + i * 2, (char)(font[i] >>> 16));
+			cpu.write(start + i * 2 + 1, (char)font[i]);
 		}
 	}
 	
-	public void dumpPalette(char start, Color[] palette) {
+	public void dumpPalette(char start, int[] palette) {
 		// Stick a palette in DCPU memory. For use with MEM_DUMP_PALETTE.
 		for (int i = 0; i < palette.length; i++) {
-			char word = 0;
-			word &= (palette[i].getRed() / 17) << 8;
-			word &= (palette[i].getGreen() / 17) << 4;
-			word &= palette[i].getBlue() / 17;
-			cpu.memory[start + i].set(word);
+			int rgb = palette[i];
+			char word = (char)((rgb >> 16 & 0xff) / 17 << 8 | (rgb >> 8 & 0xff) / 17 << 4 | (rgb & 0xff) / 17);
+			cpu.write(start + i, word);
 		}
 	}
 
-	private BufferedImage replaceColor(BufferedImage img, Color fgColor, Color bgColor) {
-		int fgColorRGB = fgColor.getRGB();
-		int bgColorRGB = bgColor.getRGB();
-		
-		BufferedImage img2 = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
-		Graphics2D g = img2.createGraphics();
-		g.drawImage(img, 0, 0, null);
-		g.dispose();
-		
-		for (int x = 0; x < img2.getWidth(); x++) {
-			for (int y = 0; y < img2.getHeight(); y++) {
-				int rgb = img2.getRGB(x, y);
-				if (rgb == Color.BLACK.getRGB())
-					img2.setRGB(x, y, bgColorRGB);
-				else
-					img2.setRGB(x, y, fgColorRGB);
-			}
-		}
-		return img2;
-	}
-	
 	// Returns whether the screen was updated.
 	public boolean update() {
 		if (System.currentTimeMillis() % 100 == 0) {
@@ -190,8 +211,8 @@ public class Monitor extends Hardware implements MemoryListener {
 				for (int y = 0; y < ROWS; y++) {
 					MonitorCell cell = cells[y * 32 + x];
 					if (cell.blink) {
-						setShouldRender(true);
 						cell.show = !cell.show;
+						invalidate(y * 32 + x);
 					}
 				}
 			}
@@ -199,57 +220,163 @@ public class Monitor extends Hardware implements MemoryListener {
 		
 		if (getShouldRender()) {
 			render();
-			setShouldRender(false);
 			return true;
 		}
 		return false;
 	}
 	
+	// Redraws whatever changed since last time: the border if SET_BORDER_COLOR changed it,
+	// and the dirty cells.
 	public synchronized void render() {
-		Graphics2D g = screen.createGraphics();
+		Metrics metrics = cpu.metrics;
+		long start = metrics != null ? System.nanoTime() : 0;
 		
-		g.setColor(borderColor);
-		g.fillRect(0, 0, WIDTH, HEIGHT);
-		for (int x = 0; x < COLUMNS; x++) {
-			for (int y = 0; y < ROWS; y++) {
-				MonitorCell cell = cells[y * 32 + x];
-				if (!cell.show) {
-					g.setColor(Color.BLACK);
-					g.fillRect(x * 4 + BORDER, y * 8 + BORDER, 4, 8);
-				} else if (cell.fgColor.equals(cell.bgColor)) {
-					g.setColor(cell.bgColor);
-					g.fillRect(x * 4 + BORDER, y * 8 + BORDER, 4, 8);
-				} else
-					g.drawImage(replaceColor(font[cell.character], cell.fgColor, cell.bgColor), x * 4 + BORDER, y * 8 + BORDER, null);
-			}
+		if (dirtyBorder) {
+			fill(0, 0, WIDTH, BORDER, borderColor);
+			fill(0, HEIGHT - BORDER, WIDTH, BORDER, borderColor);
+			fill(0, BORDER, BORDER, HEIGHT - BORDER * 2, borderColor);
+			fill(WIDTH - BORDER, BORDER, BORDER, HEIGHT - BORDER * 2, borderColor);
+			dirtyBorder = false;
 		}
+		for (int i = dirtyCells.nextSetBit(0); i >= 0; i = dirtyCells.nextSetBit(i + 1))
+			drawCell(i);
+		dirtyCells.clear();
+		shouldRender = false;
 		
-		g.dispose();
+		if (metrics != null)
+			metrics.rendered(System.nanoTime() - start);
+	}
+	
+	private void drawCell(int i) {
+		MonitorCell cell = cells[i];
+		int x = i % COLUMNS * CHAR_WIDTH + BORDER, y = i / COLUMNS * CHAR_HEIGHT + BORDER;
+		if (!cell.show) {
+			fill(x, y, CHAR_WIDTH, CHAR_HEIGHT, BLACK);
+			return;
+		}
+		int from = glyph(cell.character, cell.fg, cell.bg);
+		for (int row = 0; row < CHAR_HEIGHT; row++)
+			System.arraycopy(cachePixels, from + row * CHAR_WIDTH, pixels, (y + row) * WIDTH + x, CHAR_WIDTH);
+	}
+	
+	// Where the glyph for a character in a pair of colors is in cachePixels, drawing it
+	// there first if it isn't already.
+	private int glyph(int character, int fg, int bg) {
+		int key = character << 8 | fg << 4 | bg;
+		int slot = key * 0x9e3779b1 >>> 32 - CACHE_BITS;
+		int offset = slot * CHAR_WIDTH * CHAR_HEIGHT;
+		if (cacheKeys[slot] != key) {
+			int bits = font[character], fgColor = palette[fg], bgColor = palette[bg];
+			for (int row = 0; row < CHAR_HEIGHT; row++) {
+				for (int col = 0; col < CHAR_WIDTH; col++)
+					cachePixels[offset + row * CHAR_WIDTH + col] = (bits >> ((3 - col) * 8 + row) & 1) != 0 ? fgColor : bgColor;
+			}
+			cacheKeys[slot] = key;
+		}
+		return offset;
+	}
+	
+	private void fill(int x, int y, int width, int height, int rgb) {
+		for (int row = y; row < y + height; row++)
+			Arrays.fill(pixels, row * WIDTH + x, row * WIDTH + x + width, rgb);
+	}
+	
+	// Has the next render() redraw a cell.
+	private synchronized void invalidate(int cell) {
+		dirtyCells.set(cell);
+		shouldRender = true;
+	}
+	
+	// Has the next render() redraw every cell showing a character, after its glyph changed.
+	private synchronized void invalidateCharacter(int character) {
+		for (int slot = 0; slot < cacheKeys.length; slot++) {
+			if (cacheKeys[slot] >>> 8 == character)
+				cacheKeys[slot] = -1;
+		}
+		for (int i = 0; i < SCREEN_SIZE; i++) {
+			if (cells[i].character == character)
+				dirtyCells.set(i);
+		}
+		shouldRender = true;
+	}
+	
+	// Has the next render() redraw every cell using a palette entry, after it changed.
+	private synchronized void invalidateColor(int index) {
+		for (int slot = 0; slot < cacheKeys.length; slot++) {
+			int key = cacheKeys[slot];
+			if (key != -1 && ((key >> 4 & 0xf) == index || (key & 0xf) == index))
+				cacheKeys[slot] = -1;
+		}
+		for (int i = 0; i < SCREEN_SIZE; i++) {
+			if (cells[i].fg == index || cells[i].bg == index)
+				dirtyCells.set(i);
+		}
+		shouldRender = true;
+	}
+	
+	// Has the next render() redraw the whole screen.
+	synchronized void invalidate() {
+		dirtyCells.set(0, SCREEN_SIZE);
+		dirtyBorder = true;
+		shouldRender = true;
+	}
+	
+	// The same, after the whole font or palette was swapped for another.
+	private synchronized void invalidateGlyphs() {
+		Arrays.fill(cacheKeys, -1);
+		invalidate();
+	}
+	
+	private synchronized void setBorderColor(int color) {
+		if (color == borderColor)
+			return;
+		borderColor = color;
+		dirtyBorder = true;
+		shouldRender = true;
 	}
 	
 	@Override
 	public boolean inMemoryRange(char loc) {
-		return (loc >= memStart && loc < memStart + 0x180)
-				|| (fontStart != 0 && (loc >= fontStart && loc < fontStart + 0x280))
-				|| (paletteStart != 0 && (loc >= paletteStart && loc < paletteStart + 0xf));
+		return (loc >= memStart && loc < memStart + SCREEN_SIZE)
+				|| (fontStart != 0 && (loc >= fontStart && loc < fontStart + FONT_SIZE))
+				|| (paletteStart != 0 && (loc >= paletteStart && loc < paletteStart + PALETTE_SIZE));
 	}
 	
 	@Override
 	public void onSet(char location, char value) {
-		if (location >= memStart && location < (memStart + 0x180)) {
+		update(location, value);
+	}
+	
+	@Override
+	public void onRangeDirty(BitSet dirty) {
+		updateDirty(dirty, memStart, SCREEN_SIZE);
+		if (fontStart != 0)
+			updateDirty(dirty, fontStart, FONT_SIZE);
+		if (paletteStart != 0)
+			updateDirty(dirty, paletteStart, PALETTE_SIZE);
+	}
+	
+	private void updateDirty(BitSet dirty, int start, int length) {
+		int end = Math.min(start + length, DCPU.MEMORY_SIZE);
+		for (int i = dirty.nextSetBit(start); i >= 0 && i < end; i = dirty.nextSetBit(i + 1))
+			update((char)i, cpu.memory.get(i));
+	}
+	
+	private void update(char location, char value) {
+		if (location >= memStart && location < (memStart + SCREEN_SIZE)) {
     		MonitorCell cell = cells[location - memStart];
     		cell.character = (char)(value & 127);
-    		cell.fgColor = palette[value >> 12];
-    		cell.bgColor = palette[value >> 8 & 0xf];
+    		cell.fg = value >> 12;
+    		cell.bg = value >> 8 & 0xf;
     		cell.blink = (value >> 7 & 1) == 1;
     		cell.show = true;
-		} else if (fontStart != 0 && location >= fontStart && location < (fontStart + 0x280)) {
+    		invalidate(location - memStart);
+		} else if (fontStart != 0 && location >= fontStart && location < (fontStart + FONT_SIZE)) {
 			// Builds half a font
 			buildFont(location - fontStart, value);
-		} else if (paletteStart != 0 && location >= paletteStart && location < (paletteStart + 0xf)) {
+		} else if (paletteStart != 0 && location >= paletteStart && location < (paletteStart + PALETTE_SIZE)) {
 			buildPalette(location - paletteStart, value);
 		}
-		setShouldRender(true);
 	}
 
 	@Override
@@ -263,44 +390,93 @@ public class Monitor extends Hardware implements MemoryListener {
 		shouldRender = value;
 	}
 	
+	// Fills every cell from the mapped screen memory.
+	private void mapScreen() {
+		for (int i = 0; i < SCREEN_SIZE; i++) {
+			char value = cpu.read(memStart + i);
+			MonitorCell cell = cells[i];
+    		cell.character = (char)(value & 127);
+    		cell.fg = value >> 12;
+    		cell.bg = value >> 8 & 0xf;
+    		cell.blink = (value >> 7 & 1) == 1;
+    		cell.show = true;
+		}
+	}
+	
+	@Override
+	public Hardware copyFor(DCPU cpu) {
+		return new Monitor(cpu);
+	}
+	
+	// The mapped font and screen are rebuilt from memory on loading; the palette is saved
+	// as it stands, since it isn't always mapped.
+	@Override
+	public int stateSize() {
+		return 2 * 3 + 4 * PALETTE_SIZE + 4;
+	}
+	
+	@Override
+	public void saveState(ByteBuffer out) {
+		out.putChar(memStart).putChar(fontStart).putChar(paletteStart);
+		for (int color : palette)
+			out.putInt(color);
+		out.putInt(borderColor);
+	}
+	
+	@Override
+	public void loadState(ByteBuffer in) {
+		boolean defaultFont = fontStart == 0;
+		memStart = in.getChar();
+		fontStart = in.getChar();
+		paletteStart = in.getChar();
+		for (int i = 0; i < PALETTE_SIZE; i++)
+			palette[i] = in.getInt();
+		borderColor = in.getInt();
+		watchMemory();
+		
+		// The default font is only ever changed by mapping one over it.
+		if (fontStart != 0) {
+			for (int i = 0; i < FONT_SIZE && fontStart + i < 0x10000; i++)
+				setFontWord(i, cpu.read(fontStart + i));
+		} else if (!defaultFont)
+			font = loadDefaultFont();
+		mapScreen();
+		invalidateGlyphs();
+	}
+	
 	public void interrupt() {
-		char b = cpu.getRegister(Register.B).value;
-		switch (cpu.getRegister(Register.A).value) {
+		char b = cpu.getRegister(Register.B);
+		switch (cpu.getRegister(Register.A)) {
 		case 0: // MEM_MAP_SCREEN
 			memStart = b;
-			for (int i = 0; i < 0x180; i++) {
-				char value = cpu.memory[memStart + i].value;
-				MonitorCell cell = cells[i];
-	    		cell.character = (char)(value & 127);
-	    		cell.fgColor = palette[value >> 12];
-	    		cell.bgColor = palette[value >> 8 & 0xf];
-	    		cell.blink = (value >> 7 & 1) == 1;
-	    		cell.show = true;
-			}
-			setShouldRender(true);
+			watchMemory();
+			mapScreen();
+			invalidate();
 			break;
 		case 1: // MEM_MAP_FONT
 			fontStart = b;
+			watchMemory();
 			if (b == 0)
 		        font = loadDefaultFont();
 			else {
-				for (int i = 0; i < 0x100 && fontStart + i < 0x10000; i++)
-					buildFont(i, cpu.memory[fontStart + i].value);
+				for (int i = 0; i < FONT_SIZE && fontStart + i < 0x10000; i++)
+					setFontWord(i, cpu.read(fontStart + i));
 			}
-			setShouldRender(true);
+			invalidateGlyphs();
 			break;
 		case 2: // MEM_MAP_PALETTE
 			paletteStart = b;
+			watchMemory();
 			if (b == 0)
 				palette = Arrays.copyOf(defaultPalette, defaultPalette.length);
 			else {
-				for (int i = 0; i < 0x10; i++)
-					buildPalette(i, cpu.memory[paletteStart + i].value);
+				for (int i = 0; i < PALETTE_SIZE; i++)
+					setPaletteWord(i, cpu.read(paletteStart + i));
 			}
+			invalidateGlyphs();
 			break;
 		case 3: // SET_BORDER_COLOR
-			borderColor = palette[b];
-			setShouldRender(true);
+			setBorderColor(palette[b]);
 			break;
 		case 4: // MEM_DUMP_FONT
 			dumpFont(b, loadDefaultFont());
@@ -48,11 +48,15 @@ public class MonitorPanel extends JPanel implements MouseListener {
 	}
 	
 	public void render() {
+		scale();
+		getGraphics().drawImage(screen, 0, 0, null);
+	}
+	
+	// Draws the monitor's screen into the panel's, SCALE times the size.
+	void scale() {
 		Graphics2D g = screen.createGraphics();
 		g.drawImage(monitor.screen, scaler, 0, 0);
 		g.dispose();
-		
-		getGraphics().drawImage(screen, 0, 0, null);
 	}
 	
 	public void paint(Graphics g) {
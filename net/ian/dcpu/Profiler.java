@@ -0,0 +1,322 @@
+package net.ian.dcpu;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Counts exactly where a program spends its time, while DCPU.profiler is set: how many
+// times each address ran and the cycles it took, every backward jump (the loops), and
+// a tree of call paths built from JSRs and interrupts, with the cycles spent in each.
+//
+// There's no call stack on the DCPU, so the profiler keeps its own. A JSR or an
+// interrupt pushes a frame, remembering how deep the DCPU's stack was just after it,
+// and a frame is popped as soon as the stack is shallower than that again: SET PC, POP
+// and RFI do it, and so does a routine that drops its return address and jumps.
+//
+// Addresses are reported by label and source line; see useSymbols().
+public class Profiler {
+	private static final int MAX_FRAMES = 1024;
+	private static final int MAX_NODES = 1 << 14;
+	// Slots in the table of children, kept at most half full.
+	private static final int CHILD_SLOTS = MAX_NODES * 2;
+	// The root of the call tree, for whatever runs outside any call.
+	private static final int ROOT = 0;
+
+	// Per address.
+	private final long[] instructions = new long[DCPU.MEMORY_SIZE];
+	private final long[] cycles = new long[DCPU.MEMORY_SIZE];
+	// Backward jumps, by the address jumping, and where they last went.
+	private final long[] backJumps = new long[DCPU.MEMORY_SIZE];
+	private final char[] backJumpTarget = new char[DCPU.MEMORY_SIZE];
+
+	// The call tree. Each node is a path of calls, named by its last callee.
+	private final int[] nodeParent = new int[MAX_NODES];
+	private final char[] nodeCallee = new char[MAX_NODES];
+	private final boolean[] nodeInterrupt = new boolean[MAX_NODES];
+	private final long[] nodeCycles = new long[MAX_NODES];
+	private final long[] nodeCalls = new long[MAX_NODES];
+	// Children by parent, callee and whether it was an interrupt, open-addressed so a call
+	// costs no boxing. A slot's node is 0 (ROOT, never anyone's child) while it's empty.
+	private final long[] childKeys = new long[CHILD_SLOTS];
+	private final int[] childNodes = new int[CHILD_SLOTS];
+	private int nodeCount = 1;
+
+	// The profiler's call stack: the node for each frame, and the stack depth it ends at.
+	private final int[] frameNode = new int[MAX_FRAMES];
+	private final int[] frameDepth = new int[MAX_FRAMES];
+	private int frames;
+	private int node = ROOT;
+
+	// The instruction being run, and SP and cycles before it.
+	private int pc, sp, before;
+
+	// Label and source line by address, if known. Without them, cpu.labels is used.
+	public Map<Integer, String> labels;
+	public Map<Integer, Integer> lines;
+
+	// Takes the labels and line numbers from whatever the assembler last assembled.
+	public void useSymbols(Assembler assembler) {
+		labels = byAddress(assembler.labels);
+		lines = assembler.lines;
+	}
+
+	// Labels by address. Where several share one, the first alphabetically wins.
+	static Map<Integer, String> byAddress(Map<String, Integer> labels) {
+		Map<Integer, String> names = new HashMap<>();
+		for (Map.Entry<String, Integer> label : new TreeMap<>(labels).entrySet()) {
+			if (!names.containsKey(label.getValue()))
+				names.put(label.getValue(), label.getKey());
+		}
+		return names;
+	}
+
+	// Called by the engines just before an instruction runs, after any interrupt is taken.
+	void before(DCPU cpu, boolean interrupted) {
+		if (interrupted)
+			call(cpu, true);
+		pc = cpu.PC;
+		sp = cpu.SP;
+		before = cpu.cycles;
+	}
+
+	// Called by the engines just after the instruction runs. insn is how it decoded.
+	void after(DCPU cpu, int insn) {
+		int pc = this.pc, spent = cpu.cycles - before;
+		instructions[pc]++;
+		cycles[pc] += spent;
+		nodeCycles[node] += spent;
+
+		if (Instruction.isSpecial(insn) && Instruction.opcode(insn) == 0x01) { // JSR
+			call(cpu, false);
+			return;
+		}
+		int depth = depth(cpu.SP);
+		while (frames > 0 && depth < frameDepth[frames - 1]) {
+			frames--;
+			node = frames > 0 ? frameNode[frames - 1] : ROOT;
+		}
+		// Returns go backwards too, but they take something off the stack.
+		if (cpu.PC <= pc && cpu.SP == sp && cpu.PC != ((pc + Instruction.length(insn)) & 0xffff)) {
+			backJumps[pc]++;
+			backJumpTarget[pc] = cpu.PC;
+		}
+	}
+
+	// How many words are on the DCPU's stack.
+	private static int depth(char sp) {
+		return -sp & 0xffff;
+	}
+
+	// Enters cpu.PC, which a JSR or an interrupt has just gone to.
+	private void call(DCPU cpu, boolean interrupt) {
+		if (frames == MAX_FRAMES)
+			return;
+		node = child(node, cpu.PC, interrupt);
+		nodeCalls[node]++;
+		frameNode[frames] = node;
+		frameDepth[frames++] = depth(cpu.SP);
+	}
+
+	private int child(int parent, char callee, boolean interrupt) {
+		long key = (long)parent << 17 | (interrupt ? 1 << 16 : 0) | callee;
+		int slot = (int)(key * 0x9e3779b97f4a7c15L >>> 40) & (CHILD_SLOTS - 1);
+		while (childNodes[slot] != ROOT) {
+			if (childKeys[slot] == key)
+				return childNodes[slot];
+			slot = (slot + 1) & (CHILD_SLOTS - 1);
+		}
+		// Past MAX_NODES, new paths are counted in their caller.
+		if (nodeCount == MAX_NODES)
+			return parent;
+		int made = nodeCount++;
+		nodeParent[made] = parent;
+		nodeCallee[made] = callee;
+		nodeInterrupt[made] = interrupt;
+		childKeys[slot] = key;
+		childNodes[slot] = made;
+		return made;
+	}
+
+	// Forgets everything counted so far. Call it on the CPU thread or while it's stopped.
+	public void reset() {
+		Arrays.fill(instructions, 0);
+		Arrays.fill(cycles, 0);
+		Arrays.fill(backJumps, 0);
+		Arrays.fill(nodeCycles, 0);
+		Arrays.fill(nodeCalls, 0);
+		Arrays.fill(childNodes, ROOT);
+		nodeCount = 1;
+		frames = 0;
+		node = ROOT;
+	}
+
+	public long instructions(int addr) {
+		return instructions[addr];
+	}
+
+	public long cycles(int addr) {
+		return cycles[addr];
+	}
+
+	public long totalCycles() {
+		long total = 0;
+		for (long spent : cycles)
+			total += spent;
+		return total;
+	}
+
+	// Prints the flat profile, the subroutines with their inclusive times, the call
+	// edges and the hottest loops, top lines of each.
+	public void report(DCPU cpu, PrintStream out, int top) {
+		final Map<Integer, String> labels = this.labels != null ? this.labels : cpu.labels;
+		long total = Math.max(totalCycles(), 1);
+
+		out.println("Flat profile");
+		out.println("    cycles      %  instructions  location");
+		List<Integer> hot = new ArrayList<>();
+		for (int addr = 0; addr < DCPU.MEMORY_SIZE; addr++) {
+			if (instructions[addr] > 0)
+				hot.add(addr);
+		}
+		Collections.sort(hot, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(cycles[b], cycles[a]);
+			}
+		});
+		for (int addr : hot.subList(0, Math.min(top, hot.size())))
+			out.printf("%10d %6.2f %13d  %s%n", cycles[addr], 100.0 * cycles[addr] / total, instructions[addr], where(labels, addr));
+
+		// A subroutine's inclusive time counts each path to it once, even if it recurses.
+		final Map<Integer, long[]> routines = new HashMap<>();
+		long[] inclusive = inclusiveCycles();
+		for (int n = 1; n < nodeCount; n++) {
+			int key = nodeCallee[n] | (nodeInterrupt[n] ? 1 << 16 : 0);
+			long[] totals = routines.get(key);
+			if (totals == null)
+				routines.put(key, totals = new long[3]);
+			totals[1] += nodeCycles[n];
+			totals[2] += nodeCalls[n];
+			if (!recursive(n))
+				totals[0] += inclusive[n];
+		}
+		List<Integer> order = new ArrayList<>(routines.keySet());
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(routines.get(b)[0], routines.get(a)[0]);
+			}
+		});
+		out.println();
+		out.println("Subroutines");
+		out.println(" inclusive      %       self     calls  subroutine");
+		for (int key : order.subList(0, Math.min(top, order.size()))) {
+			long[] totals = routines.get(key);
+			out.printf("%10d %6.2f %10d %9d  %s%n", totals[0], 100.0 * totals[0] / total, totals[1], totals[2],
+					routine(labels, key & 0xffff, key > 0xffff));
+		}
+
+		final Map<String, Long> edges = new HashMap<>();
+		for (int n = 1; n < nodeCount; n++) {
+			int parent = nodeParent[n];
+			String edge = (parent == ROOT ? "[top]" : routine(labels, nodeCallee[parent], nodeInterrupt[parent]))
+					+ " -> " + routine(labels, nodeCallee[n], nodeInterrupt[n]);
+			Long calls = edges.get(edge);
+			edges.put(edge, (calls == null ? 0 : calls) + nodeCalls[n]);
+		}
+		List<String> edgeOrder = new ArrayList<>(edges.keySet());
+		Collections.sort(edgeOrder, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return Long.compare(edges.get(b), edges.get(a));
+			}
+		});
+		out.println();
+		out.println("Calls");
+		for (String edge : edgeOrder.subList(0, Math.min(top, edgeOrder.size())))
+			out.printf("%10d  %s%n", edges.get(edge), edge);
+
+		// A loop's body is taken to be everything from where it jumps back to to the jump.
+		final long[] loopCycles = new long[DCPU.MEMORY_SIZE];
+		List<Integer> loops = new ArrayList<>();
+		for (int addr = 0; addr < DCPU.MEMORY_SIZE; addr++) {
+			if (backJumps[addr] == 0)
+				continue;
+			for (int body = backJumpTarget[addr]; body <= addr; body++)
+				loopCycles[addr] += cycles[body];
+			loops.add(addr);
+		}
+		Collections.sort(loops, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(loopCycles[b], loopCycles[a]);
+			}
+		});
+		out.println();
+		out.println("Loops");
+		out.println("    cycles      %  iterations  loop");
+		for (int addr : loops.subList(0, Math.min(top, loops.size())))
+			out.printf("%10d %6.2f %11d  %s back from %s%n", loopCycles[addr], 100.0 * loopCycles[addr] / total, backJumps[addr],
+					where(labels, backJumpTarget[addr]), where(labels, addr));
+	}
+
+	// Prints the call paths in the collapsed-stack format flame graph tools read: one
+	// line per path, callers first, separated by semicolons, then the cycles spent there.
+	public void writeCollapsed(DCPU cpu, PrintStream out) {
+		Map<Integer, String> labels = this.labels != null ? this.labels : cpu.labels;
+		String[] paths = new String[nodeCount];
+		paths[ROOT] = "[top]";
+		// Parents always come before their children.
+		for (int n = 1; n < nodeCount; n++)
+			paths[n] = paths[nodeParent[n]] + ";" + routine(labels, nodeCallee[n], nodeInterrupt[n]).replace(' ', '_');
+		for (int n = 0; n < nodeCount; n++) {
+			if (nodeCycles[n] > 0)
+				out.println(paths[n] + " " + nodeCycles[n]);
+		}
+	}
+
+	// Each node's cycles plus its descendants'.
+	private long[] inclusiveCycles() {
+		long[] inclusive = Arrays.copyOf(nodeCycles, nodeCount);
+		for (int n = nodeCount - 1; n > 0; n--)
+			inclusive[nodeParent[n]] += inclusive[n];
+		return inclusive;
+	}
+
+	// Whether a node's callee is already somewhere up its path.
+	private boolean recursive(int n) {
+		for (int up = nodeParent[n]; up != ROOT; up = nodeParent[up]) {
+			if (nodeCallee[up] == nodeCallee[n] && nodeInterrupt[up] == nodeInterrupt[n])
+				return true;
+		}
+		return false;
+	}
+
+	private String routine(Map<Integer, String> labels, int addr, boolean interrupt) {
+		String name = labels != null && labels.containsKey(addr) ? labels.get(addr) : String.format("0x%04x", addr);
+		return interrupt ? "interrupt " + name : name;
+	}
+
+	// An address as the nearest label at or before it, and its source line.
+	private String where(Map<Integer, String> labels, int addr) {
+		String place = String.format("0x%04x", addr);
+		if (labels != null) {
+			for (int at = addr; at >= 0; at--) {
+				String label = labels.get(at);
+				if (label != null) {
+					place += at == addr ? " " + label : " " + label + "+" + (addr - at);
+					break;
+				}
+			}
+		}
+		if (lines != null && lines.containsKey(addr))
+			place += " (line " + lines.get(addr) + ")";
+		return place;
+	}
+}
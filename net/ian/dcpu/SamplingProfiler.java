@@ -0,0 +1,222 @@
+package net.ian.dcpu;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A cheap profiler for leaving on: every so many cycles (interval on average, jittered
+// so it doesn't fall into step with the program's loops) it notes PC, and the return
+// addresses it can find near the top of the stack. It's a Scheduler event, so it runs on
+// the CPU's thread between instructions and costs nothing at all while stopped; start()
+// and stop() work from any thread, on a running CPU.
+//
+// Every engine lands samples on the same instructions. The JitEngine only runs a compiled
+// block (or copy loop) if it ends before the next event, and steps the interpreter
+// otherwise, so a sample can fall anywhere inside a block, not just at block leaders.
+//
+// The DCPU's stack has no frames to walk, so a word near the top counts as a return
+// address if the instruction just before it is a JSR. That's right nearly always, and
+// harmless when it isn't.
+//
+// Counts go straight into AtomicLongArrays, so other threads can report while it runs.
+public class SamplingProfiler {
+	// Keeps the cost under 1% even in turbo mode.
+	public static final int DEFAULT_INTERVAL = 10_000;
+	// How many stack words are looked at for return addresses.
+	private static final int STACK_WORDS = 16;
+
+	private final DCPU cpu;
+	private final int interval;
+	// Samples taken with PC at each address.
+	private final AtomicLongArray samples = new AtomicLongArray(DCPU.MEMORY_SIZE);
+	// Samples with each address on the stack as a return address.
+	private final AtomicLongArray returns = new AtomicLongArray(DCPU.MEMORY_SIZE);
+
+	// Bumped by start() and stop(), so a chain of samples left from before knows to end.
+	private volatile int generation;
+	private volatile boolean sampling;
+	private int random = 0x2545f491;
+
+	// Labels by address, for reports. Without them, cpu.labels is used.
+	public Map<Integer, String> labels;
+
+	public SamplingProfiler(DCPU cpu) {
+		this(cpu, DEFAULT_INTERVAL);
+	}
+
+	// interval is the average number of cycles between samples.
+	public SamplingProfiler(DCPU cpu, int interval) {
+		this.cpu = cpu;
+		this.interval = Math.max(interval, 2);
+	}
+
+	public void useSymbols(Assembler assembler) {
+		labels = Profiler.byAddress(assembler.labels);
+	}
+
+	// Starts sampling. Safe to call from any thread, whether or not the CPU is running.
+	public void start() {
+		final int chain = ++generation;
+		sampling = true;
+		cpu.scheduler.post(new Runnable() {
+			@Override
+			public void run() {
+				new Sample(chain).schedule();
+			}
+		});
+	}
+
+	// Stops sampling; whatever's been counted stays. Safe to call from any thread.
+	public void stop() {
+		sampling = false;
+		generation++;
+	}
+
+	public boolean isSampling() {
+		return sampling;
+	}
+
+	private class Sample implements Runnable {
+		private final int chain;
+
+		Sample(int chain) {
+			this.chain = chain;
+		}
+
+		void schedule() {
+			// Anywhere from half to one and a half intervals, by xorshift.
+			random ^= random << 13;
+			random ^= random >>> 17;
+			random ^= random << 5;
+			cpu.scheduler.schedule(interval / 2 + (random & 0x7fffffff) % interval, this);
+		}
+
+		@Override
+		public void run() {
+			if (chain != generation)
+				return;
+			sample();
+			schedule();
+		}
+	}
+
+	private void sample() {
+		DCPU cpu = this.cpu;
+		samples.incrementAndGet(cpu.PC);
+		Memory memory = cpu.memory;
+		int words = Math.min(-cpu.SP & 0xffff, STACK_WORDS);
+		for (int i = 0; i < words; i++) {
+			int word = memory.get((cpu.SP + i) & 0xffff);
+			if (afterJSR(memory, word))
+				returns.incrementAndGet(word);
+		}
+	}
+
+	// Whether the instruction just before addr is a JSR.
+	private static boolean afterJSR(Memory memory, int addr) {
+		for (int length = 1; length <= 2; length++) {
+			int insn = Instruction.decode(memory.get((addr - length) & 0xffff));
+			if (Instruction.length(insn) == length && Instruction.isSpecial(insn) && Instruction.opcode(insn) == 0x01)
+				return true;
+		}
+		return false;
+	}
+
+	// Drops every sample so far. Safe to call from any thread.
+	public void reset() {
+		for (int addr = 0; addr < DCPU.MEMORY_SIZE; addr++) {
+			samples.set(addr, 0);
+			returns.set(addr, 0);
+		}
+	}
+
+	public long samples(int addr) {
+		return samples.get(addr);
+	}
+
+	public long totalSamples() {
+		long total = 0;
+		for (int addr = 0; addr < DCPU.MEMORY_SIZE; addr++)
+			total += samples.get(addr);
+		return total;
+	}
+
+	// Prints the hottest addresses, then time by label: samples in the code after it
+	// ("self"), and those plus samples in things it called ("total"). Safe to call while
+	// sampling. Recursive calls count a sample once per frame, so totals can run over.
+	public void report(PrintStream out, int top) {
+		Map<Integer, String> labels = this.labels != null ? this.labels : cpu.labels;
+		TreeMap<Integer, String> sorted = new TreeMap<>();
+		if (labels != null)
+			sorted.putAll(labels);
+		final long[] self = new long[DCPU.MEMORY_SIZE];
+		final long[] total = new long[DCPU.MEMORY_SIZE];
+		long all = 0;
+		List<Integer> hot = new ArrayList<>();
+		for (int addr = 0; addr < DCPU.MEMORY_SIZE; addr++) {
+			self[addr] = samples.get(addr);
+			all += self[addr];
+			if (self[addr] > 0)
+				hot.add(addr);
+		}
+		all = Math.max(all, 1);
+		Collections.sort(hot, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(self[b], self[a]);
+			}
+		});
+		out.println("Addresses");
+		out.println("   samples      %  location");
+		for (int addr : hot.subList(0, Math.min(top, hot.size())))
+			out.printf("%10d %6.2f  %s%n", self[addr], 100.0 * self[addr] / all, where(sorted, addr));
+
+		// Totals by the label each address comes under, indexed by the label's address.
+		final long[] labelSelf = new long[DCPU.MEMORY_SIZE];
+		List<Integer> named = new ArrayList<>();
+		for (int addr = 0; addr < DCPU.MEMORY_SIZE; addr++) {
+			Map.Entry<Integer, String> label = sorted.floorEntry(addr);
+			int at = label == null ? 0 : label.getKey();
+			if (self[addr] > 0) {
+				if (labelSelf[at] == 0 && total[at] == 0)
+					named.add(at);
+				labelSelf[at] += self[addr];
+				total[at] += self[addr];
+			}
+			// A return address belongs to whatever made the call, just before it.
+			long calls = returns.get(addr);
+			if (calls > 0) {
+				label = sorted.floorEntry((addr - 1) & 0xffff);
+				at = label == null ? 0 : label.getKey();
+				if (labelSelf[at] == 0 && total[at] == 0)
+					named.add(at);
+				total[at] += calls;
+			}
+		}
+		Collections.sort(named, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(total[b], total[a]);
+			}
+		});
+		out.println();
+		out.println("Labels");
+		out.println("     total      %       self      %  label");
+		for (int at : named.subList(0, Math.min(top, named.size())))
+			out.printf("%10d %6.2f %10d %6.2f  %s%n", total[at], 100.0 * total[at] / all, labelSelf[at],
+					100.0 * labelSelf[at] / all, sorted.containsKey(at) ? sorted.get(at) : "(unlabelled)");
+	}
+
+	private static String where(TreeMap<Integer, String> labels, int addr) {
+		Map.Entry<Integer, String> label = labels.floorEntry(addr);
+		if (label == null)
+			return String.format("0x%04x", addr);
+		int offset = addr - label.getKey();
+		return String.format("0x%04x %s", addr, offset == 0 ? label.getValue() : label.getValue() + "+" + offset);
+	}
+}
@@ -0,0 +1,85 @@
+package net.ian.dcpu;
+
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Device events, timed in CPU cycles rather than wall-clock time. DCPU.run() runs the CPU
+// up to the next event, fires it, and carries on, so a device that asks for a callback
+// in N cycles gets it at the first instruction boundary N cycles on, whatever the host
+// is doing. Everything fires on the CPU's thread; other threads hand events over with post().
+public class Scheduler {
+	private static class Entry implements Comparable<Entry> {
+		final long cycle, order;
+		final Runnable event;
+
+		Entry(long cycle, long order, Runnable event) {
+			this.cycle = cycle;
+			this.order = order;
+			this.event = event;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			// Events due at the same cycle fire in the order they were scheduled.
+			if (cycle != other.cycle)
+				return cycle < other.cycle ? -1 : 1;
+			return Long.compare(order, other.order);
+		}
+	}
+
+	private final DCPU cpu;
+	private final PriorityQueue<Entry> events = new PriorityQueue<>();
+	private final Queue<Runnable> posted = new ConcurrentLinkedQueue<>();
+	private long order;
+
+	public Scheduler(DCPU cpu) {
+		this.cpu = cpu;
+	}
+
+	// Fires event once the CPU has run for another delay cycles (at least one).
+	public void schedule(long delay, Runnable event) {
+		scheduleAt(cpu.elapsedCycles() + Math.max(delay, 1), event);
+	}
+
+	// Fires event once cpu.elapsedCycles() reaches cycle.
+	public void scheduleAt(long cycle, Runnable event) {
+		events.add(new Entry(cycle, order++, event));
+	}
+
+	// Drops every pending firing of event.
+	public void cancel(Runnable event) {
+		for (Entry entry : events.toArray(new Entry[0])) {
+			if (entry.event == event)
+				events.remove(entry);
+		}
+	}
+
+	// Fires event as soon as the CPU thread gets to it. Safe to call from any thread.
+	public void post(Runnable event) {
+		posted.add(event);
+		cpu.wake();
+	}
+
+	// The cycle the next event is due at, or Long.MAX_VALUE if there's none.
+	public long nextEvent() {
+		Entry next = events.peek();
+		return next == null ? Long.MAX_VALUE : next.cycle;
+	}
+
+	// Fires posted events and any events that are due. Called on the CPU thread.
+	public void runDue() {
+		Runnable event;
+		while ((event = posted.poll()) != null)
+			event.run();
+		long now = cpu.elapsedCycles();
+		while (!events.isEmpty() && events.peek().cycle <= now)
+			events.poll().event.run();
+	}
+
+	// Forgets every event.
+	public void clear() {
+		events.clear();
+		posted.clear();
+	}
+}
@@ -0,0 +1,174 @@
+package net.ian.dcpu;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Saves a whole machine to a ByteBuffer and puts it back: memory, registers, the
+// interrupt queue, cycle counts, and each device's own state (see Hardware.saveState()).
+// Memory goes in and out in bulk copies, a page at a time, so a snapshot takes
+// microseconds, and save()/restore() map the file rather than copying through a stream.
+// Restore a booted machine instead of booting it again.
+//
+// The format, all big-endian:
+//   int MAGIC, short VERSION
+//   char registers A-J, SP, PC, EX, IA; byte iaq, skipping, onFire
+//   long instructionCount; int cycles; long cycleBase; long frames
+//   short queued interrupts, then the messages, oldest first
+//   char memory[MEMORY_SIZE]
+//   short devices, then for each: int id, int length, length bytes of state
+//
+// Only take or restore a snapshot while nothing is running the CPU.
+public class Snapshot {
+	public static final int MAGIC = 0x44435055; // "DCPU"
+	public static final int VERSION = 1;
+
+	private static final int HEADER = 4 + 2 + DCPU.Register.values().length * 2 + 4 * 2 + 3 + 8 + 4 + 8 + 8;
+
+	// How many bytes write() needs for cpu as it is now.
+	public static int size(DCPU cpu) {
+		int size = HEADER + 2 + cpu.interrupts.depth() * 2 + DCPU.MEMORY_SIZE * 2 + 2;
+		for (Hardware device : cpu.devices)
+			size += 8 + device.stateSize();
+		return size;
+	}
+
+	// Writes cpu's state at out's position, leaving the position after it.
+	public static void write(DCPU cpu, ByteBuffer out) {
+		out.putInt(MAGIC);
+		out.putShort((short)VERSION);
+		for (char value : cpu.register)
+			out.putChar(value);
+		out.putChar(cpu.SP).putChar(cpu.PC).putChar(cpu.EX).putChar(cpu.IA);
+		out.put((byte)(cpu.iaq ? 1 : 0)).put((byte)(cpu.skipping ? 1 : 0)).put((byte)(cpu.onFire ? 1 : 0));
+		out.putLong(cpu.instructionCount).putInt(cpu.cycles).putLong(cpu.cycleBase).putLong(cpu.frames);
+
+		char[] queued = cpu.interrupts.waiting();
+		out.putShort((short)queued.length);
+		for (char msg : queued)
+			out.putChar(msg);
+
+		CharBuffer words = out.asCharBuffer();
+		for (int page = 0; page < Memory.PAGES; page++)
+			words.put(cpu.memory.page(page));
+		out.position(out.position() + DCPU.MEMORY_SIZE * 2);
+
+		out.putShort((short)cpu.devices.size());
+		for (Hardware device : cpu.devices) {
+			out.putInt(device.id);
+			int lengthAt = out.position();
+			out.putInt(0);
+			device.saveState(out);
+			out.putInt(lengthAt, out.position() - lengthAt - 4);
+		}
+	}
+
+	// Puts cpu back in the state written at in's position. cpu needs the same devices,
+	// in the same order, as the one the snapshot came from. The snapshot is checked before
+	// anything is changed, so if it's the wrong one, or cut short, cpu is left as it was.
+	public static void read(DCPU cpu, ByteBuffer in) throws IOException {
+		check(cpu, in.duplicate());
+		try {
+			in.position(in.position() + 4 + 2);
+			for (int i = 0; i < cpu.register.length; i++)
+				cpu.register[i] = in.getChar();
+			cpu.SP = in.getChar();
+			cpu.PC = in.getChar();
+			cpu.EX = in.getChar();
+			cpu.IA = in.getChar();
+			cpu.iaq = in.get() != 0;
+			cpu.skipping = in.get() != 0;
+			boolean onFire = in.get() != 0;
+			cpu.instructionCount = in.getLong();
+			cpu.cycles = in.getInt();
+			cpu.cycleBase = in.getLong();
+			cpu.frames = in.getLong();
+
+			cpu.interrupts.clear();
+			cpu.onFire = onFire;
+			for (int i = in.getShort(); i > 0; i--)
+				cpu.interrupts.offer(in.getChar());
+
+			CharBuffer words = in.asCharBuffer();
+			for (int page = 0; page < Memory.PAGES; page++)
+				words.get(cpu.memory.writable(page));
+			in.position(in.position() + DCPU.MEMORY_SIZE * 2);
+			cpu.forgetCode();
+
+			// Devices put their own events back.
+			cpu.scheduler.clear();
+			in.getShort();
+			for (Hardware device : cpu.devices) {
+				in.getInt();
+				int length = in.getInt();
+				int end = in.position() + length;
+				ByteBuffer state = in.duplicate();
+				state.limit(end);
+				device.loadState(state);
+				in.position(end);
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Snapshot is cut short", e);
+		}
+	}
+
+	// Reads through a snapshot without restoring anything, making sure it's whole, fits
+	// the interrupt queue and was taken from a machine with the same devices as cpu.
+	private static void check(DCPU cpu, ByteBuffer in) throws IOException {
+		try {
+			if (in.getInt() != MAGIC)
+				throw new IOException("Not a DCPU snapshot");
+			int version = in.getShort();
+			if (version != VERSION)
+				throw new IOException("Unsupported snapshot version " + version);
+			skip(in, HEADER - 4 - 2);
+			int queued = in.getShort();
+			if (queued < 0 || queued > InterruptQueue.CAPACITY)
+				throw new IOException("Snapshot has " + queued + " queued interrupts");
+			skip(in, queued * 2 + DCPU.MEMORY_SIZE * 2);
+
+			int count = in.getShort();
+			if (count != cpu.devices.size())
+				throw new IOException("Snapshot has " + count + " devices, but the DCPU has " + cpu.devices.size());
+			for (Hardware device : cpu.devices) {
+				int id = in.getInt(), length = in.getInt();
+				if (id != device.id)
+					throw new IOException(String.format("Snapshot has device %08x where the DCPU has %08x", id, device.id));
+				if (length != device.stateSize())
+					throw new IOException(String.format("Snapshot has %d bytes of state for device %08x, which takes %d",
+							length, id, device.stateSize()));
+				skip(in, length);
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Snapshot is cut short", e);
+		}
+	}
+
+	private static void skip(ByteBuffer in, int bytes) {
+		if (bytes > in.remaining())
+			throw new BufferUnderflowException();
+		in.position(in.position() + bytes);
+	}
+
+	// Saves cpu to a file.
+	public static void save(DCPU cpu, Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size(cpu));
+			write(cpu, out);
+			out.force();
+		}
+	}
+
+	// Restores cpu from a file written by save().
+	public static void restore(DCPU cpu, Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			read(cpu, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+}
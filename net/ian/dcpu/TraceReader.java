@@ -0,0 +1,106 @@
+package net.ian.dcpu;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.GZIPInputStream;
+
+// Reads back a file written by TraceRecorder, gzipped or not, one record at a time:
+//   while (reader.next()) ... reader.pc, reader.word, ...
+// Run on its own it prints a trace as text, one instruction a line.
+public class TraceReader implements AutoCloseable {
+	private final DataInputStream in;
+
+	// The current record. See TraceRecorder for what they mean.
+	public char pc, word, a, b;
+	public long cycle;
+	public int flags;
+
+	public TraceReader(Path path) throws IOException {
+		InputStream stream = new BufferedInputStream(Files.newInputStream(path), 1 << 16);
+		stream.mark(2);
+		boolean gzipped = stream.read() == 0x1f && stream.read() == 0x8b;
+		stream.reset();
+		if (gzipped)
+			stream = new BufferedInputStream(new GZIPInputStream(stream, 1 << 16), 1 << 16);
+		in = new DataInputStream(stream);
+
+		if (in.readInt() != TraceRecorder.MAGIC)
+			throw new IOException(path + " isn't a trace");
+		int version = in.readInt();
+		if (version != TraceRecorder.VERSION)
+			throw new IOException("Unsupported trace version " + version);
+		if (in.readInt() != TraceRecorder.RECORD_SIZE)
+			throw new IOException("Unexpected trace record size");
+	}
+
+	// Moves on to the next record. Returns false at the end of the trace.
+	public boolean next() throws IOException {
+		try {
+			pc = in.readChar();
+		} catch (EOFException e) {
+			return false;
+		}
+		word = in.readChar();
+		a = in.readChar();
+		b = in.readChar();
+		long last = in.readLong();
+		cycle = last >>> 8;
+		flags = (int)last & 0xff;
+		return true;
+	}
+
+	public boolean isInterrupt() {
+		return (flags & TraceRecorder.INTERRUPT) != 0;
+	}
+
+	public boolean isSkipped() {
+		return (flags & TraceRecorder.SKIPPED) != 0;
+	}
+
+	// The record as a line of text: cycle, PC, word, mnemonic and operand values.
+	public String format() {
+		int insn = Instruction.decode(word);
+		int opcode = Instruction.opcode(insn);
+		String[] names = Instruction.isSpecial(insn) ? Assembler.specialOps : Assembler.basicOps;
+		String name = opcode >= 1 && opcode <= names.length ? names[opcode - 1] : "???";
+		StringBuilder line = new StringBuilder(String.format("%10d %04x: %04x %-3s", cycle, (int)pc, (int)word, name));
+		if (isSkipped())
+			line.append(" (skipped)");
+		else if (Instruction.isSpecial(insn))
+			line.append(String.format(" a=%04x", (int)a));
+		else
+			line.append(String.format(" b=%04x a=%04x", (int)b, (int)a));
+		if (isInterrupt())
+			line.append(" [interrupt]");
+		return line.toString();
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("Usage: TraceReader <trace file>");
+			System.exit(1);
+		}
+		try (TraceReader reader = new TraceReader(Paths.get(args[0]))) {
+			StringBuilder out = new StringBuilder();
+			while (reader.next()) {
+				out.append(reader.format()).append('\n');
+				if (out.length() > 1 << 16) {
+					System.out.print(out);
+					out.setLength(0);
+				}
+			}
+			System.out.print(out);
+		}
+	}
+}
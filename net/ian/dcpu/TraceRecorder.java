@@ -0,0 +1,227 @@
+package net.ian.dcpu;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+// Writes every instruction the CPU runs to a file, while DCPU.trace is set. Each one is a
+// fixed-size record, filled in on the CPU thread straight into a buffer from a small
+// pool. Full buffers go to a writer thread, which writes them out (gzipped if asked) and
+// hands them back, so the CPU only waits on the disk if it gets a whole pool ahead.
+//
+// The file is a header (MAGIC, VERSION, RECORD_SIZE as ints) and then records:
+//   char PC, char instruction word, char value of a, char value of b,
+//   long elapsed cycles << 8 | flags
+// all big-endian. Operand values are what the instruction found before it ran (b is 0
+// for special instructions). Skipped instructions get a record with SKIPPED set and no
+// operands. TraceReader reads them back.
+public class TraceRecorder implements AutoCloseable {
+	public static final int MAGIC = 0x44545243; // "DTRC"
+	public static final int VERSION = 1;
+	public static final int RECORD_SIZE = 16;
+
+	// Flags. INTERRUPT means an interrupt was taken first, so PC is the handler's.
+	public static final int INTERRUPT = 1;
+	public static final int SKIPPED = 2;
+
+	private static final int BUFFERS = 4;
+	private static final int BUFFER_RECORDS = 1 << 16;
+
+	private final FileChannel channel;
+	private final OutputStream compressed;
+	private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(BUFFERS + 1);
+	private final BlockingQueue<ByteBuffer> empty = new ArrayBlockingQueue<>(BUFFERS);
+	// Handed to the writer to tell it to finish.
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+	private final Thread writer;
+	private volatile IOException failure;
+
+	private ByteBuffer current;
+	private long records;
+	private boolean closed;
+
+	public TraceRecorder(Path path) throws IOException {
+		this(path, path.toString().endsWith(".gz"));
+	}
+
+	public TraceRecorder(Path path, boolean compress) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		// Traces are big and repetitive; the fastest level gets most of the way there.
+		compressed = !compress ? null : new GZIPOutputStream(Channels.newOutputStream(channel), 1 << 16) {
+			{
+				def.setLevel(Deflater.BEST_SPEED);
+			}
+		};
+		ByteBuffer header = ByteBuffer.allocate(12);
+		header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).flip();
+		write(header);
+
+		for (int i = 0; i < BUFFERS - 1; i++)
+			empty.add(ByteBuffer.allocate(BUFFER_RECORDS * RECORD_SIZE));
+		current = ByteBuffer.allocate(BUFFER_RECORDS * RECORD_SIZE);
+
+		writer = new Thread("Trace writer") {
+			@Override
+			public void run() {
+				drain();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	// Records the instruction at cpu.PC, before it runs. Called by the engines.
+	void record(DCPU cpu, int flags) {
+		Memory memory = cpu.memory;
+		int pc = cpu.PC;
+		char word = memory.get(pc);
+		int a = 0, b = 0;
+		if ((flags & SKIPPED) == 0) {
+			int insn = Instruction.decode(word);
+			int modeA = Instruction.a(insn);
+			int next = (pc + 1) & 0xffff;
+			int after = (pc + Instruction.length(insn)) & 0xffff;
+			// a is resolved first, so b sees SP after a POP, and both are read once b has
+			// had its PUSH: SET SP, PUSH finds SP already moved.
+			int sp = cpu.SP, spB = modeA == 0x18 ? (sp + 1) & 0xffff : sp, end = spB;
+			if (!Instruction.isSpecial(insn)) {
+				int modeB = Instruction.b(insn);
+				if (modeB == 0x18)
+					end = (spB - 1) & 0xffff;
+				int nextB = Instruction.hasNextWord(modeA) ? (next + 1) & 0xffff : next;
+				b = operand(cpu, modeB, false, spB, end, nextB, after);
+			}
+			a = operand(cpu, modeA, true, sp, end, next, after);
+		}
+
+		ByteBuffer buffer = current;
+		buffer.putChar((char)pc).putChar(word).putChar((char)a).putChar((char)b);
+		buffer.putLong(cpu.elapsedCycles() << 8 | flags);
+		records++;
+		if (!buffer.hasRemaining())
+			swap();
+	}
+
+	// The value an operand will have when the instruction reads it, worked out without
+	// touching anything. sp is SP when the operand is resolved and end is SP once both
+	// are, next is where its next word is, and after is PC once the instruction's words
+	// are read.
+	private static int operand(DCPU cpu, int mode, boolean isA, int sp, int end, int next, int after) {
+		Memory memory = cpu.memory;
+		char[] register = cpu.register;
+		switch (mode) {
+		case 0x00: case 0x01: case 0x02: case 0x03:
+		case 0x04: case 0x05: case 0x06: case 0x07:
+			return register[mode];
+		case 0x08: case 0x09: case 0x0a: case 0x0b:
+		case 0x0c: case 0x0d: case 0x0e: case 0x0f:
+			return memory.get(register[mode - 0x08]);
+		case 0x10: case 0x11: case 0x12: case 0x13:
+		case 0x14: case 0x15: case 0x16: case 0x17:
+			return memory.get((memory.get(next) + register[mode - 0x10]) & 0xffff);
+		case 0x18: // POP / PUSH
+			return memory.get(isA ? sp : (sp - 1) & 0xffff);
+		case 0x19: // PEEK
+			return memory.get(sp);
+		case 0x1a: // PICK n
+			return memory.get((sp + memory.get(next)) & 0xffff);
+		case 0x1b:
+			return end;
+		case 0x1c:
+			return after;
+		case 0x1d:
+			return cpu.EX;
+		case 0x1e: // [next word]
+			return memory.get(memory.get(next));
+		case 0x1f: // next word (literal)
+			return memory.get(next);
+		default: // Short literals, -1 to 30.
+			return (mode - 0x21) & 0xffff;
+		}
+	}
+
+	// Hands the full buffer to the writer and takes an empty one, waiting if there's none.
+	private void swap() {
+		current.flip();
+		try {
+			full.put(current);
+			current = empty.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while tracing", e);
+		}
+	}
+
+	// How many records have been made.
+	public long records() {
+		return records;
+	}
+
+	// Writes out what's left and closes the file. Call it once the CPU has stopped.
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		current.flip();
+		try {
+			full.put(current);
+			full.put(END);
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while finishing the trace", e);
+		}
+		try {
+			if (compressed != null)
+				compressed.close();
+			else
+				channel.close();
+		} catch (IOException e) {
+			if (failure == null)
+				failure = e;
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	// The writer thread. After a failure it keeps handing buffers back unwritten, so the
+	// CPU carries on; close() reports it.
+	private void drain() {
+		try {
+			ByteBuffer buffer;
+			while ((buffer = full.take()) != END) {
+				if (failure == null) {
+					try {
+						write(buffer);
+					} catch (IOException e) {
+						failure = e;
+					}
+				}
+				buffer.clear();
+				empty.offer(buffer);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		if (compressed != null) {
+			compressed.write(buffer.array(), buffer.position(), buffer.remaining());
+			buffer.position(buffer.limit());
+		} else {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+	}
+}